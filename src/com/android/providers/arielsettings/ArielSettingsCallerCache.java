@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.arielsettings;
+
+import android.util.ArrayMap;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.GuardedBy;
+
+/**
+ * Bounded cache of the permission and package facts the provider looks up for
+ * its callers, keyed by calling uid and calling package.
+ * <p>
+ * Permission results are cached per uid as permissions are granted to a uid.
+ * Package facts, i.e. the target SDK and whether the package is privileged,
+ * are cached per uid and package. Entries of a uid must be invalidated when
+ * its packages or permissions change. A result computed while an invalidation
+ * happened is not stored, see {@link #getGeneration()}.
+ * </p>
+ * <p>
+ * App op checks are not cached as they also note the operation.
+ * </p>
+ */
+final class ArielSettingsCallerCache {
+    // Bound on the number of cached uids, the cache starts over when reached.
+    private static final int MAX_CACHED_UIDS = 64;
+
+    private static final int MAX_CACHED_PACKAGES_PER_UID = 8;
+
+    /** Facts about a calling package. */
+    static final class PackageFacts {
+        public final int targetSdkVersion;
+        public final boolean privileged;
+
+        public PackageFacts(int targetSdkVersion, boolean privileged) {
+            this.targetSdkVersion = targetSdkVersion;
+            this.privileged = privileged;
+        }
+    }
+
+    private static final class UidEntry {
+        final ArrayMap<String, Boolean> permissions = new ArrayMap<>();
+        final ArrayMap<String, PackageFacts> packages = new ArrayMap<>();
+    }
+
+    private final Object mLock = new Object();
+
+    @GuardedBy("mLock")
+    private final SparseArray<UidEntry> mEntries = new SparseArray<>();
+
+    @GuardedBy("mLock")
+    private int mGeneration;
+
+    /**
+     * @return A token to pass to the put methods so a result that was computed
+     * while the cache got invalidated is not stored.
+     */
+    public int getGeneration() {
+        synchronized (mLock) {
+            return mGeneration;
+        }
+    }
+
+    /**
+     * @return Whether the permission is granted to the uid, or null if unknown.
+     */
+    public Boolean getPermission(int uid, String permission) {
+        synchronized (mLock) {
+            UidEntry entry = mEntries.get(uid);
+            return (entry != null) ? entry.permissions.get(permission) : null;
+        }
+    }
+
+    public void putPermission(int uid, String permission, boolean granted, int generation) {
+        synchronized (mLock) {
+            if (generation != mGeneration) {
+                return;
+            }
+            getOrCreateEntryLocked(uid).permissions.put(permission, granted);
+        }
+    }
+
+    /**
+     * @return The facts about the package of the uid, or null if unknown.
+     */
+    public PackageFacts getPackageFacts(int uid, String packageName) {
+        synchronized (mLock) {
+            UidEntry entry = mEntries.get(uid);
+            return (entry != null) ? entry.packages.get(packageName) : null;
+        }
+    }
+
+    public void putPackageFacts(int uid, String packageName, PackageFacts facts,
+            int generation) {
+        synchronized (mLock) {
+            if (generation != mGeneration) {
+                return;
+            }
+            UidEntry entry = getOrCreateEntryLocked(uid);
+            if (entry.packages.size() >= MAX_CACHED_PACKAGES_PER_UID) {
+                entry.packages.clear();
+            }
+            entry.packages.put(packageName, facts);
+        }
+    }
+
+    public void invalidateUid(int uid) {
+        synchronized (mLock) {
+            mEntries.remove(uid);
+            mGeneration++;
+        }
+    }
+
+    @GuardedBy("mLock")
+    private UidEntry getOrCreateEntryLocked(int uid) {
+        UidEntry entry = mEntries.get(uid);
+        if (entry != null) {
+            return entry;
+        }
+        if (mEntries.size() >= MAX_CACHED_UIDS) {
+            // Rare as few apps write settings, so no need for an LRU.
+            mEntries.clear();
+        }
+        entry = new UidEntry();
+        mEntries.put(uid, entry);
+        return entry;
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.arielsettings;
+
+/**
+ * Open addressing hash map with linear probing from setting names to values,
+ * used for settings tables too large for an {@link android.util.ArrayMap}.
+ * Lookup, insertion and removal take constant expected time.
+ * <p>
+ * Entries are addressed by a slot position in [0, {@link #capacity()}) for
+ * iteration. Removal leaves a tombstone instead of moving entries, so removing
+ * at a position while iterating is safe. Tombstones are dropped when the table
+ * is rehashed on insertion.
+ * </p>
+ * <p>
+ * Keys cannot be null, looking up a null key finds nothing.
+ * </p>
+ * <p>
+ * This class is not thread safe.
+ * </p>
+ */
+final class ArielSettingsHashMap<V> {
+    private static final int MIN_CAPACITY = 16;
+
+    // Marks a removed entry, compared by identity.
+    private static final String TOMBSTONE = new String("");
+
+    private String[] mKeys;
+    private Object[] mValues;
+
+    // Number of live entries.
+    private int mSize;
+
+    // Number of live entries and tombstones.
+    private int mUsed;
+
+    public ArielSettingsHashMap(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        mKeys = new String[capacity];
+        mValues = new Object[capacity];
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public int capacity() {
+        return mKeys.length;
+    }
+
+    public String keyAt(int position) {
+        final String key = mKeys[position];
+        return (key != TOMBSTONE) ? key : null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V valueAt(int position) {
+        return (V) mValues[position];
+    }
+
+    @SuppressWarnings("unchecked")
+    public V removeAt(int position) {
+        final String key = mKeys[position];
+        if (key == null || key == TOMBSTONE) {
+            return null;
+        }
+        V oldValue = (V) mValues[position];
+        mKeys[position] = TOMBSTONE;
+        mValues[position] = null;
+        mSize--;
+        return oldValue;
+    }
+
+    public int indexOfKey(String key) {
+        if (key == null) {
+            return -1;
+        }
+        final int mask = mKeys.length - 1;
+        int index = hash(key) & mask;
+        while (true) {
+            final String candidate = mKeys[index];
+            if (candidate == null) {
+                return -1;
+            }
+            if (candidate != TOMBSTONE && (candidate == key || candidate.equals(key))) {
+                return index;
+            }
+            index = (index + 1) & mask;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(String key) {
+        final int index = indexOfKey(key);
+        return (index >= 0) ? (V) mValues[index] : null;
+    }
+
+    public V remove(String key) {
+        final int index = indexOfKey(key);
+        return (index >= 0) ? removeAt(index) : null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V put(String key, V value) {
+        final int existingIndex = indexOfKey(key);
+        if (existingIndex >= 0) {
+            V oldValue = (V) mValues[existingIndex];
+            mValues[existingIndex] = value;
+            return oldValue;
+        }
+
+        // Keep the load including tombstones at most one half.
+        if ((mUsed + 1) * 2 > mKeys.length) {
+            rehash();
+        }
+
+        final int mask = mKeys.length - 1;
+        int index = hash(key) & mask;
+        while (true) {
+            final String candidate = mKeys[index];
+            if (candidate == null || candidate == TOMBSTONE) {
+                if (candidate == null) {
+                    mUsed++;
+                }
+                mKeys[index] = key;
+                mValues[index] = value;
+                mSize++;
+                return null;
+            }
+            index = (index + 1) & mask;
+        }
+    }
+
+    private void rehash() {
+        // Grow only if the live entries need it, otherwise just drop tombstones.
+        int capacity = mKeys.length;
+        if ((mSize + 1) * 4 > capacity) {
+            capacity <<= 1;
+        }
+
+        final String[] oldKeys = mKeys;
+        final Object[] oldValues = mValues;
+        mKeys = new String[capacity];
+        mValues = new Object[capacity];
+        mUsed = mSize;
+
+        final int mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            final String key = oldKeys[i];
+            if (key == null || key == TOMBSTONE) {
+                continue;
+            }
+            int index = hash(key) & mask;
+            while (mKeys[index] != null) {
+                index = (index + 1) & mask;
+            }
+            mKeys[index] = key;
+            mValues[index] = oldValues[i];
+        }
+    }
+
+    private static int hash(String key) {
+        final int h = key.hashCode() * 0x9E3779B1;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.arielsettings;
+
+import android.content.pm.PackageManager;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Finds the most frequent (calling uid, table, setting name) accesses in
+ * bounded memory using the Space-Saving algorithm.
+ * <p>
+ * A fixed number of counters is kept. An access that is not tracked replaces
+ * the counter with the lowest count and inherits that count as its possible
+ * overestimation. Any access more frequent than total / capacity is guaranteed
+ * to be tracked, so abusive callers show up without tracing all accesses.
+ * </p>
+ * <p>
+ * Only one in sample rate accesses is recorded, weighted by the sample rate,
+ * so frequent accesses rarely contend on the lock. The packages of a uid are
+ * only looked up when dumping.
+ * </p>
+ */
+final class ArielSettingsHeavyHitters {
+    private static final class Counter {
+        int hash;
+        int uid;
+        int table;
+        String name;
+        long count;
+        long error;
+    }
+
+    private static final Comparator<Counter> BY_COUNT_DESCENDING = new Comparator<Counter>() {
+        @Override
+        public int compare(Counter lhs, Counter rhs) {
+            return Long.compare(rhs.count, lhs.count);
+        }
+    };
+
+    private final Object mLock = new Object();
+
+    @GuardedBy("mLock")
+    private final Counter[] mCounters;
+
+    @GuardedBy("mLock")
+    private int mCounterCount;
+
+    @GuardedBy("mLock")
+    private long mTotal;
+
+    private final int mSampleRate;
+
+    public ArielSettingsHeavyHitters(int capacity, int sampleRate) {
+        mSampleRate = sampleRate;
+        mCounters = new Counter[capacity];
+        for (int i = 0; i < capacity; i++) {
+            mCounters[i] = new Counter();
+        }
+    }
+
+    /**
+     * Records an access, if sampled. A null name stands for the whole table.
+     */
+    public void record(int uid, int table, String name) {
+        if (mSampleRate > 1 && ThreadLocalRandom.current().nextInt(mSampleRate) != 0) {
+            return;
+        }
+        final int hash = hash(uid, table, name);
+        synchronized (mLock) {
+            mTotal += mSampleRate;
+
+            Counter min = null;
+            for (int i = 0; i < mCounterCount; i++) {
+                Counter counter = mCounters[i];
+                if (counter.hash == hash && counter.uid == uid && counter.table == table
+                        && equals(counter.name, name)) {
+                    counter.count += mSampleRate;
+                    return;
+                }
+                if (min == null || counter.count < min.count) {
+                    min = counter;
+                }
+            }
+
+            final Counter counter;
+            final long inheritedCount;
+            if (mCounterCount < mCounters.length) {
+                counter = mCounters[mCounterCount++];
+                inheritedCount = 0;
+            } else {
+                counter = min;
+                inheritedCount = min.count;
+            }
+            counter.hash = hash;
+            counter.uid = uid;
+            counter.table = table;
+            counter.name = name;
+            counter.count = inheritedCount + mSampleRate;
+            counter.error = inheritedCount;
+        }
+    }
+
+    public void reset() {
+        synchronized (mLock) {
+            for (int i = 0; i < mCounterCount; i++) {
+                mCounters[i].name = null;
+            }
+            mCounterCount = 0;
+            mTotal = 0;
+        }
+    }
+
+    /**
+     * Prints the most frequent accesses, most frequent first.
+     */
+    public void dump(PrintWriter pw, String label, int topCount,
+            PackageManager packageManager) {
+        final Counter[] top;
+        final long total;
+        synchronized (mLock) {
+            total = mTotal;
+            top = new Counter[mCounterCount];
+            for (int i = 0; i < mCounterCount; i++) {
+                // Copy as the counters are reused.
+                Counter counter = new Counter();
+                Counter source = mCounters[i];
+                counter.uid = source.uid;
+                counter.table = source.table;
+                counter.name = source.name;
+                counter.count = source.count;
+                counter.error = source.error;
+                top[i] = counter;
+            }
+        }
+        Arrays.sort(top, BY_COUNT_DESCENDING);
+
+        pw.append(label).append(" (total ").print(total);
+        if (mSampleRate > 1) {
+            pw.append(", sampled 1/").print(mSampleRate);
+        }
+        pw.println(")");
+        final int printCount = Math.min(topCount, top.length);
+        for (int i = 0; i < printCount; i++) {
+            Counter counter = top[i];
+            pw.append("  count:").print(counter.count);
+            pw.append(" error:").print(counter.error);
+            pw.append(" uid:").print(counter.uid);
+            String[] packageNames = packageManager.getPackagesForUid(counter.uid);
+            pw.append(" packages:").append(Arrays.toString(packageNames));
+            pw.append(" table:").append(ArielSettingsStats.getTableName(counter.table));
+            pw.append(" name:").append((counter.name != null) ? counter.name : "*");
+            pw.println();
+        }
+    }
+
+    private static int hash(int uid, int table, String name) {
+        int hash = uid;
+        hash = 31 * hash + table;
+        hash = 31 * hash + ((name != null) ? name.hashCode() : 0);
+        return hash;
+    }
+
+    private static boolean equals(String a, String b) {
+        return a == b || (a != null && a.equals(b));
+    }
+}
@@ -28,6 +28,7 @@ import android.location.LocationManager;
 import android.media.AudioManager;
 import android.media.RingtoneManager;
 import android.net.Uri;
+import android.os.Bundle;
 import android.os.IPowerManager;
 import android.os.RemoteException;
 import android.os.ServiceManager;
@@ -38,9 +39,14 @@ import android.telephony.TelephonyManager;
 import android.text.TextUtils;
 import android.util.ArraySet;
 
+import java.util.ArrayList;
 import java.util.Locale;
 
 public class ArielSettingsHelper {
+    private static final String TABLE_SYSTEM = "system";
+    private static final String TABLE_SECURE = "secure";
+    private static final String TABLE_GLOBAL = "global";
+
     private Context mContext;
 
     private interface SettingsLookup {
@@ -95,6 +101,37 @@ public class ArielSettingsHelper {
 
     }
 
+    /**
+     * Restores a whole set of settings into one table with a single call into
+     * the provider, which lives in this process, instead of looking up and
+     * writing every key through the content resolver. The provider applies the
+     * set as one batch with one persist and one change notification.
+     *
+     * @param destination the content uri of the table to restore into
+     * @param names the names of the settings to restore
+     * @param values the values of the settings in the order of the names
+     * @return the number of settings whose value changed
+     */
+    public int restoreValues(ContentResolver cr, Uri destination, ArrayList<String> names,
+            ArrayList<String> values) {
+        final String table;
+        if (destination.equals(ArielSettings.Secure.CONTENT_URI)) {
+            table = TABLE_SECURE;
+        } else if (destination.equals(ArielSettings.System.CONTENT_URI)) {
+            table = TABLE_SYSTEM;
+        } else { /* must be GLOBAL; this was preflighted by the caller */
+            table = TABLE_GLOBAL;
+        }
+
+        Bundle args = new Bundle();
+        args.putStringArrayList(ArielSettingsProvider.BACKUP_KEY_NAMES, names);
+        args.putStringArrayList(ArielSettingsProvider.BACKUP_KEY_VALUES, values);
+        Bundle result = cr.call(destination, ArielSettingsProvider.CALL_METHOD_RESTORE, table,
+                args);
+        return (result != null)
+                ? result.getInt(ArielSettingsProvider.BACKUP_KEY_RESTORED_COUNT) : 0;
+    }
+
     public String onBackupValue(String name, String value) {
         // Return the original value
         return value;
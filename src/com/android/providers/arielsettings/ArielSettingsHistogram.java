@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.arielsettings;
+
+import android.os.Bundle;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of durations with fixed power of two buckets in microseconds,
+ * i.e. bucket i counts the durations in [2^(i-1), 2^i) us and bucket 0 the
+ * ones under 1 us. The last bucket also counts all longer durations.
+ * <p>
+ * Recording does not allocate or lock so it may be done on hot paths and with
+ * any lock held. A snapshot taken while recording may be slightly inconsistent
+ * which is fine for statistics.
+ * </p>
+ */
+final class ArielSettingsHistogram {
+    static final int BUCKET_COUNT = 32;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mTotalNanos = new AtomicLong();
+    private final AtomicLong mMaxNanos = new AtomicLong();
+
+    public void record(long durationNanos) {
+        if (durationNanos < 0) {
+            durationNanos = 0;
+        }
+        mBuckets.incrementAndGet(getBucket(durationNanos / 1000));
+        mCount.incrementAndGet();
+        mTotalNanos.addAndGet(durationNanos);
+        long max = mMaxNanos.get();
+        while (durationNanos > max && !mMaxNanos.compareAndSet(max, durationNanos)) {
+            max = mMaxNanos.get();
+        }
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mBuckets.set(i, 0);
+        }
+        mCount.set(0);
+        mTotalNanos.set(0);
+        mMaxNanos.set(0);
+    }
+
+    /**
+     * @return The upper bound in microseconds of the bucket holding the given
+     * percentile, or 0 if nothing was recorded.
+     */
+    public long getPercentileMicros(int percentile) {
+        final long count = mCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (count * percentile + 99) / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mBuckets.get(i);
+            if (seen >= rank) {
+                return getBucketUpperBoundMicros(i);
+            }
+        }
+        return getBucketUpperBoundMicros(BUCKET_COUNT - 1);
+    }
+
+    public void dump(PrintWriter pw, String label) {
+        final long count = mCount.get();
+        pw.append(label).append(": count=").print(count);
+        if (count > 0) {
+            pw.append(" avgUs=").print(mTotalNanos.get() / count / 1000);
+            pw.append(" p50Us<=").print(getPercentileMicros(50));
+            pw.append(" p90Us<=").print(getPercentileMicros(90));
+            pw.append(" p99Us<=").print(getPercentileMicros(99));
+            pw.append(" maxUs=").print(mMaxNanos.get() / 1000);
+        }
+        pw.println();
+    }
+
+    /**
+     * Writes the histogram under keys starting with the given prefix.
+     */
+    public void writeToBundle(Bundle bundle, String prefix) {
+        long[] buckets = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets[i] = mBuckets.get(i);
+        }
+        bundle.putLongArray(prefix + ".buckets", buckets);
+        bundle.putLong(prefix + ".count", mCount.get());
+        bundle.putLong(prefix + ".totalNanos", mTotalNanos.get());
+        bundle.putLong(prefix + ".maxNanos", mMaxNanos.get());
+    }
+
+    private static int getBucket(long durationMicros) {
+        final int bucket = 64 - Long.numberOfLeadingZeros(durationMicros);
+        return Math.min(bucket, BUCKET_COUNT - 1);
+    }
+
+    private static long getBucketUpperBoundMicros(int bucket) {
+        return 1L << bucket;
+    }
+}
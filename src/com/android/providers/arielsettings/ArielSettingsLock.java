@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.arielsettings;
+
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.os.SystemProperties;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.io.PrintWriter;
+
+/**
+ * The lock of the settings provider, used as a plain monitor, which also keeps
+ * per call site histograms of how long callers waited for it and held it.
+ * <p>
+ * A call site is instrumented as follows:
+ * <pre>
+ * final long waitStartNanos = mLock.beginWait();
+ * synchronized (mLock) {
+ *     try (ArielSettingsLock.Hold hold = mLock.acquired(SITE, waitStartNanos)) {
+ *         ...
+ *     }
+ * }
+ * </pre>
+ * Reentrant acquisitions are not recorded. When disabled via the
+ * {@link #PROPERTY_LOCK_STATS} system property the cost is a field read and a
+ * monitor ownership check per acquisition.
+ * </p>
+ */
+final class ArielSettingsLock {
+    static final String PROPERTY_LOCK_STATS = "persist.sys.ariel_settings_lock_stats";
+
+    static final int SITE_GET = 0;
+    static final int SITE_GET_ALL = 1;
+    static final int SITE_MUTATE = 2;
+    static final int SITE_BULK = 3;
+    static final int SITE_WRITE_STATE = 4;
+    static final int SITE_PACKAGE_REMOVED = 5;
+    static final int SITE_USER_STATE = 6;
+
+    private static final String[] SITE_NAMES = {
+        "get",
+        "getAll",
+        "mutate",
+        "bulk",
+        "writeState",
+        "packageRemoved",
+        "userState",
+    };
+
+    private final boolean mEnabled = SystemProperties.getBoolean(PROPERTY_LOCK_STATS, true);
+
+    private final ArielSettingsHistogram[] mWaitTimes =
+            new ArielSettingsHistogram[SITE_NAMES.length];
+    private final ArielSettingsHistogram[] mHoldTimes =
+            new ArielSettingsHistogram[SITE_NAMES.length];
+
+    // Closed when the recorded acquisition is released. Only the holder of
+    // the lock uses it, and reentrant acquisitions are not recorded, so one
+    // instance is enough and acquiring allocates nothing.
+    private final Hold mHold = new Hold(this);
+
+    @GuardedBy("this")
+    private int mHeldSite;
+
+    @GuardedBy("this")
+    private long mAcquiredAtNanos;
+
+    /**
+     * Records the hold time of an acquisition when closed, which must happen
+     * before leaving the synchronized block.
+     */
+    static final class Hold implements AutoCloseable {
+        // Returned for the acquisitions that are not recorded.
+        static final Hold NONE = new Hold(null);
+
+        private final ArielSettingsLock mLock;
+
+        private Hold(ArielSettingsLock lock) {
+            mLock = lock;
+        }
+
+        @Override
+        public void close() {
+            if (mLock != null) {
+                mLock.released();
+            }
+        }
+    }
+
+    public ArielSettingsLock() {
+        for (int i = 0; i < SITE_NAMES.length; i++) {
+            mWaitTimes[i] = new ArielSettingsHistogram();
+            mHoldTimes[i] = new ArielSettingsHistogram();
+        }
+    }
+
+    /**
+     * @return The start of the wait to pass to {@link #acquired(int, long)},
+     * or 0 if it is not recorded.
+     */
+    public long beginWait() {
+        if (!mEnabled || Thread.holdsLock(this)) {
+            return 0;
+        }
+        return SystemClock.elapsedRealtimeNanos();
+    }
+
+    /**
+     * Must be called right after acquiring the lock.
+     *
+     * @return The hold to close before releasing the lock.
+     */
+    public Hold acquired(int site, long waitStartNanos) {
+        if (waitStartNanos == 0) {
+            return Hold.NONE;
+        }
+        final long nowNanos = SystemClock.elapsedRealtimeNanos();
+        mWaitTimes[site].record(nowNanos - waitStartNanos);
+        mHeldSite = site;
+        mAcquiredAtNanos = nowNanos;
+        return mHold;
+    }
+
+    private void released() {
+        mHoldTimes[mHeldSite].record(SystemClock.elapsedRealtimeNanos() - mAcquiredAtNanos);
+    }
+
+    public void reset() {
+        for (int i = 0; i < SITE_NAMES.length; i++) {
+            mWaitTimes[i].reset();
+            mHoldTimes[i].reset();
+        }
+    }
+
+    public void dump(PrintWriter pw) {
+        pw.println("LOCK STATS" + (mEnabled ? "" : " (disabled)"));
+        for (int i = 0; i < SITE_NAMES.length; i++) {
+            if (mWaitTimes[i].getCount() == 0) {
+                continue;
+            }
+            mWaitTimes[i].dump(pw, "  " + SITE_NAMES[i] + " wait");
+            mHoldTimes[i].dump(pw, "  " + SITE_NAMES[i] + " hold");
+        }
+    }
+
+    public void writeToBundle(Bundle bundle) {
+        for (int i = 0; i < SITE_NAMES.length; i++) {
+            mWaitTimes[i].writeToBundle(bundle, "lock." + SITE_NAMES[i] + ".wait");
+            mHoldTimes[i].writeToBundle(bundle, "lock." + SITE_NAMES[i] + ".hold");
+        }
+    }
+}
@@ -21,6 +21,7 @@ import android.app.ActivityManager;
 import android.app.AppOpsManager;
 import android.app.backup.BackupManager;
 import android.content.BroadcastReceiver;
+import android.content.ComponentCallbacks2;
 import android.content.ContentProvider;
 import android.content.ContentValues;
 import android.content.Context;
@@ -30,6 +31,8 @@ import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.UserInfo;
+import android.content.res.Resources;
+import android.content.res.XmlResourceParser;
 import android.database.Cursor;
 import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
@@ -47,31 +50,56 @@ import android.os.Looper;
 import android.os.Message;
 import android.os.ParcelFileDescriptor;
 import android.os.Process;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.provider.ArielSettings;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructPollfd;
 import android.text.TextUtils;
 import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.Slog;
 import android.util.SparseArray;
+import android.util.SparseBooleanArray;
+import android.util.SparseIntArray;
+import android.util.SparseLongArray;
+import android.util.TypedValue;
 
 import com.android.internal.annotations.GuardedBy;
 import com.android.internal.content.PackageMonitor;
 import com.android.internal.os.BackgroundThread;
+import com.android.internal.util.XmlUtils;
+import libcore.io.IoUtils;
 
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
 import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 import java.util.regex.Pattern;
 
+import com.android.providers.arielsettings.ArielSettingsCallerCache.PackageFacts;
 import com.android.providers.arielsettings.ArielSettingsState.Setting;
 
 /**
@@ -146,6 +174,109 @@ public class ArielSettingsProvider extends ContentProvider {
 
     private static final Bundle NULL_SETTING = Bundle.forPair(ArielSettings.NameValueTable.VALUE, null);
 
+    // Call methods to put a setting value read from a file descriptor passed
+    // in the arguments under CALL_METHOD_FD_KEY, for values too large for a Bundle.
+    static final String CALL_METHOD_PUT_GLOBAL_FROM_FD = "PUT_FROM_FD_global";
+    static final String CALL_METHOD_PUT_SECURE_FROM_FD = "PUT_FROM_FD_secure";
+    static final String CALL_METHOD_PUT_SYSTEM_FROM_FD = "PUT_FROM_FD_system";
+
+    static final String CALL_METHOD_FD_KEY = "_fd";
+
+    // Call methods to export/import a snapshot of the caller's tables, or of the
+    // table passed as name, to/from the file descriptor under CALL_METHOD_FD_KEY.
+    static final String CALL_METHOD_EXPORT_SNAPSHOT = "EXPORT_SNAPSHOT";
+    static final String CALL_METHOD_IMPORT_SNAPSHOT = "IMPORT_SNAPSHOT";
+
+    // Call methods for incremental backup of the table passed as name. The first
+    // returns the settings changed and deleted since the last committed backup
+    // and the current generation; the second commits a backup up to the
+    // generation passed under BACKUP_KEY_GENERATION.
+    static final String CALL_METHOD_GET_BACKUP_CHANGES = "GET_BACKUP_CHANGES";
+    static final String CALL_METHOD_COMMIT_BACKUP = "COMMIT_BACKUP";
+
+    static final String BACKUP_KEY_GENERATION = "generation";
+    static final String BACKUP_KEY_NAMES = "names";
+    static final String BACKUP_KEY_VALUES = "values";
+    static final String BACKUP_KEY_DELETED = "deleted";
+
+    // Call method restoring the settings under BACKUP_KEY_NAMES/BACKUP_KEY_VALUES
+    // into the table passed as name as one batch. Returns the number of settings
+    // that changed under BACKUP_KEY_RESTORED_COUNT.
+    static final String CALL_METHOD_RESTORE = "RESTORE";
+
+    static final String BACKUP_KEY_RESTORED_COUNT = "restored_count";
+
+    // Returns the provider statistics in a Bundle. Requires the DUMP permission.
+    // The statistics are reset after being returned if STATS_KEY_RESET is true,
+    // as are the heavy hitters, the rate limiter counts and the memory counters
+    // reported by dump. Only the startup profile, recorded once, is kept.
+    static final String CALL_METHOD_GET_STATS = "GET_STATS";
+
+    static final String STATS_KEY_RESET = "reset";
+
+    // Operation and table recorded for a call method, packed as op << 8 | table.
+    private static final ArrayMap<String, Integer> sCallMethodStatsOps = new ArrayMap<>();
+    static {
+        addCallMethodStatsOp(ArielSettings.CALL_METHOD_GET_GLOBAL,
+                ArielSettingsStats.OP_GET, ArielSettingsStats.TABLE_GLOBAL);
+        addCallMethodStatsOp(ArielSettings.CALL_METHOD_GET_SECURE,
+                ArielSettingsStats.OP_GET, ArielSettingsStats.TABLE_SECURE);
+        addCallMethodStatsOp(ArielSettings.CALL_METHOD_GET_SYSTEM,
+                ArielSettingsStats.OP_GET, ArielSettingsStats.TABLE_SYSTEM);
+        addCallMethodStatsOp(ArielSettings.CALL_METHOD_PUT_GLOBAL,
+                ArielSettingsStats.OP_PUT, ArielSettingsStats.TABLE_GLOBAL);
+        addCallMethodStatsOp(ArielSettings.CALL_METHOD_PUT_SECURE,
+                ArielSettingsStats.OP_PUT, ArielSettingsStats.TABLE_SECURE);
+        addCallMethodStatsOp(ArielSettings.CALL_METHOD_PUT_SYSTEM,
+                ArielSettingsStats.OP_PUT, ArielSettingsStats.TABLE_SYSTEM);
+        addCallMethodStatsOp(CALL_METHOD_PUT_GLOBAL_FROM_FD,
+                ArielSettingsStats.OP_PUT, ArielSettingsStats.TABLE_GLOBAL);
+        addCallMethodStatsOp(CALL_METHOD_PUT_SECURE_FROM_FD,
+                ArielSettingsStats.OP_PUT, ArielSettingsStats.TABLE_SECURE);
+        addCallMethodStatsOp(CALL_METHOD_PUT_SYSTEM_FROM_FD,
+                ArielSettingsStats.OP_PUT, ArielSettingsStats.TABLE_SYSTEM);
+    }
+
+    private static void addCallMethodStatsOp(String method, int op, int table) {
+        sCallMethodStatsOps.put(method, op << 8 | table);
+    }
+
+    // Number of accesses tracked to find the most frequent ones, and how many are dumped.
+    private static final int HEAVY_HITTER_CAPACITY = 64;
+    private static final int HEAVY_HITTER_DUMP_COUNT = 16;
+
+    // Reads are only sampled as they are by far the hottest path.
+    private static final int HEAVY_HITTER_READ_SAMPLE_RATE = 16;
+
+    // Burst of secure and system writes an app may make and the interval at
+    // which it gets a write back, i.e. a sustained rate of 10 writes a second.
+    private static final int WRITE_RATE_LIMIT_BURST = 50;
+    private static final long WRITE_RATE_LIMIT_REFILL_INTERVAL_MILLIS = 100;
+
+    // Whether onCreate returns before the settings are loaded and migrated, in
+    // which case incoming calls wait until the registry is set up.
+    static final String PROPERTY_ASYNC_INIT = "persist.sys.ariel_settings_async_init";
+
+    // Time after which the secure and system settings of a user not accessed are
+    // dropped from memory, to be reloaded on the next access. 0 disables it.
+    static final String PROPERTY_IDLE_EVICTION_MILLIS = "persist.sys.ariel_settings_idle_evict_ms";
+    private static final long DEFAULT_IDLE_EVICTION_MILLIS = 30 * 60 * 1000;
+
+    // Time a state must not have been accessed to be dropped on memory pressure.
+    private static final long TRIM_MEMORY_MIN_IDLE_MILLIS = 60 * 1000;
+
+    // Upper bound for a setting value streamed through a file descriptor and
+    // for the time the caller may take to write it.
+    private static final int MAX_STREAMED_VALUE_BYTES = 4 * 1024 * 1024;
+    private static final long STREAMED_VALUE_READ_TIMEOUT_MILLIS = 5000;
+
+    // Same bounds for a snapshot read from or written to a file descriptor.
+    private static final int MAX_SNAPSHOT_BYTES = 16 * 1024 * 1024;
+    private static final long SNAPSHOT_IO_TIMEOUT_MILLIS = 10000;
+
+    // PIPE_BUF, what a write to a pipe polled as writable never blocks on.
+    private static final int PIPE_WRITE_CHUNK_BYTES = 4096;
+
     // Per user settings that cannot be modified if associated user restrictions are enabled.
 //    private static final Map<String, String> sSettingToUserRestrictionMap = new ArrayMap<>();
 //    static {
@@ -193,7 +324,7 @@ public class ArielSettingsProvider extends ContentProvider {
     // Per user system settings that are cloned for the managed profiles of the user.
     private static final Set<String> sSystemCloneToManagedSettings = new ArraySet<>();
 
-    private final Object mLock = new Object();
+    private final ArielSettingsLock mLock = new ArielSettingsLock();
 
     @GuardedBy("mLock")
     private SettingsRegistry mSettingsRegistry;
@@ -204,20 +335,156 @@ public class ArielSettingsProvider extends ContentProvider {
     // We have to call in the package manager with no lock held,
     private volatile PackageManager mPackageManager;
 
+    // Released once mSettingsRegistry is set up.
+    private final CountDownLatch mInitialized = new CountDownLatch(1);
+
+    // Profile parent of a user, or the user itself if not a profile. Cleared
+    // when users or profiles change. Uses its own lock as it is consulted with
+    // and without the provider lock held.
+    @GuardedBy("mProfileParentCache")
+    private final SparseIntArray mProfileParentCache = new SparseIntArray();
+
+    // Bumped on every clear so a lookup racing with a change is not cached.
+    @GuardedBy("mProfileParentCache")
+    private int mProfileParentCacheGeneration;
+
+    // Permission and package facts of callers, invalidated on package and
+    // permission changes.
+    private final ArielSettingsCallerCache mCallerCache = new ArielSettingsCallerCache();
+
+    // Latencies and errors of the provider operations.
+    private final ArielSettingsStats mStats = new ArielSettingsStats();
+
+    // Limits how often apps can write secure and system settings.
+    private final ArielSettingsRateLimiter mWriteRateLimiter = new ArielSettingsRateLimiter(
+            WRITE_RATE_LIMIT_BURST, WRITE_RATE_LIMIT_REFILL_INTERVAL_MILLIS);
+
+    // Most frequent readers and writers of settings.
+    private final ArielSettingsHeavyHitters mTopReads =
+            new ArielSettingsHeavyHitters(HEAVY_HITTER_CAPACITY, HEAVY_HITTER_READ_SAMPLE_RATE);
+    private final ArielSettingsHeavyHitters mTopWrites =
+            new ArielSettingsHeavyHitters(HEAVY_HITTER_CAPACITY, 1);
+
+    // Where the time goes from creation until the owner settings are loaded.
+    private final ArielSettingsStartupProfile mStartupProfile =
+            new ArielSettingsStartupProfile();
+
     @Override
     public boolean onCreate() {
         synchronized (mLock) {
             mUserManager = (UserManager) getContext().getSystemService(Context.USER_SERVICE);
             mPackageManager = getContext().getPackageManager();
-            mSettingsRegistry = new SettingsRegistry();
         }
-        registerBroadcastReceivers();
+        if (SystemProperties.getBoolean(PROPERTY_ASYNC_INIT, false)) {
+            // Loading and migrating the settings hits the disk, keep it off the boot path.
+            BackgroundThread.getHandler().post(new Runnable() {
+                @Override
+                public void run() {
+                    initialize(true);
+                }
+            });
+        } else {
+            initialize(false);
+        }
         return true;
     }
 
+    private void initialize(boolean preloadOwnerSettings) {
+        ArielSettingsTrace.begin("initialize");
+        try {
+            synchronized (mLock) {
+                final long registryStartNanos = mStartupProfile.beginPhase();
+                mSettingsRegistry = new SettingsRegistry();
+                mStartupProfile.endPhase("createRegistry", registryStartNanos);
+                // A migration loads the owner settings, otherwise the first access does.
+                if (mSettingsRegistry.hasSettingsForUserLocked(UserHandle.USER_OWNER)) {
+                    mStartupProfile.finish(getContext());
+                }
+            }
+            mInitialized.countDown();
+            registerBroadcastReceivers();
+
+            if (preloadOwnerSettings) {
+                // Load the global and owner secure settings, needed by most callers,
+                // before they ask. A call getting here first loads them itself under
+                // the lock, the other tables load on first access.
+                final long waitStartNanos = mLock.beginWait();
+                synchronized (mLock) {
+                    try (ArielSettingsLock.Hold hold = mLock.acquired(
+                            ArielSettingsLock.SITE_USER_STATE, waitStartNanos)) {
+                        mSettingsRegistry.getSettingsLocked(SettingsRegistry.SETTINGS_TYPE_GLOBAL,
+                                UserHandle.USER_OWNER);
+                        mSettingsRegistry.getSettingsLocked(SettingsRegistry.SETTINGS_TYPE_SECURE,
+                                UserHandle.USER_OWNER);
+                    }
+                }
+            }
+        } finally {
+            ArielSettingsTrace.end();
+        }
+    }
+
+    /**
+     * Blocks until the registry is set up, which only happens if onCreate
+     * initialized the provider in the background.
+     */
+    private void waitForInitialization() {
+        if (mInitialized.getCount() == 0) {
+            return;
+        }
+        boolean interrupted = false;
+        ArielSettingsTrace.begin("waitForInitialization");
+        try {
+            while (true) {
+                try {
+                    mInitialized.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            ArielSettingsTrace.end();
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
     @Override
     public Bundle call(String method, String name, Bundle args) {
+        waitForInitialization();
         final int requestingUserId = getRequestingUserId(args);
+        final long startNanos = SystemClock.elapsedRealtimeNanos();
+        boolean failed = true;
+        boolean rejected = false;
+        ArielSettingsTrace.begin("call", method);
+        try {
+            Bundle result = callForUser(method, name, args, requestingUserId);
+            failed = false;
+            return result;
+        } catch (SecurityException e) {
+            rejected = true;
+            throw e;
+        } finally {
+            ArielSettingsTrace.end();
+            // Keyed by the calling user as the requested one is not trusted and
+            // not recorded for rejected callers.
+            if (!rejected) {
+                final int callingUserId = UserHandle.getCallingUserId();
+                final Integer opAndTable = sCallMethodStatsOps.get(method);
+                if (opAndTable != null) {
+                    recordOperation(callingUserId, opAndTable >> 8, opAndTable & 0xff,
+                            startNanos, failed);
+                } else {
+                    recordOperation(callingUserId, ArielSettingsStats.OP_OTHER,
+                            ArielSettingsStats.TABLE_NONE, startNanos, failed);
+                }
+            }
+        }
+    }
+
+    private Bundle callForUser(String method, String name, Bundle args, int requestingUserId) {
         switch (method) {
             case ArielSettings.CALL_METHOD_GET_GLOBAL: {
                 Setting setting = getGlobalSetting(name);
@@ -252,6 +519,53 @@ public class ArielSettingsProvider extends ContentProvider {
                 break;
             }
 
+            case CALL_METHOD_PUT_GLOBAL_FROM_FD: {
+                insertSettingFromFd(SettingsRegistry.SETTINGS_TYPE_GLOBAL, name, args,
+                        requestingUserId);
+                break;
+            }
+
+            case CALL_METHOD_PUT_SECURE_FROM_FD: {
+                insertSettingFromFd(SettingsRegistry.SETTINGS_TYPE_SECURE, name, args,
+                        requestingUserId);
+                break;
+            }
+
+            case CALL_METHOD_PUT_SYSTEM_FROM_FD: {
+                insertSettingFromFd(SettingsRegistry.SETTINGS_TYPE_SYSTEM, name, args,
+                        requestingUserId);
+                break;
+            }
+
+            case CALL_METHOD_EXPORT_SNAPSHOT: {
+                exportSnapshot(name, requestingUserId, getFdArgument(args));
+                break;
+            }
+
+            case CALL_METHOD_IMPORT_SNAPSHOT: {
+                importSnapshot(name, requestingUserId, getFdArgument(args));
+                break;
+            }
+
+            case CALL_METHOD_GET_BACKUP_CHANGES: {
+                return getBackupChanges(name, requestingUserId);
+            }
+
+            case CALL_METHOD_RESTORE: {
+                return restoreSettings(name, requestingUserId, args);
+            }
+
+            case CALL_METHOD_GET_STATS: {
+                return getStats(args);
+            }
+
+            case CALL_METHOD_COMMIT_BACKUP: {
+                final long generation = (args != null)
+                        ? args.getLong(BACKUP_KEY_GENERATION, -1) : -1;
+                commitBackup(name, requestingUserId, generation);
+                break;
+            }
+
             default: {
                 Slog.w(LOG_TAG, "call() with invalid method: " + method);
             } break;
@@ -273,6 +587,22 @@ public class ArielSettingsProvider extends ContentProvider {
     @Override
     public Cursor query(Uri uri, String[] projection, String where, String[] whereArgs,
             String order) {
+        waitForInitialization();
+        final long startNanos = SystemClock.elapsedRealtimeNanos();
+        boolean failed = true;
+        ArielSettingsTrace.begin("query");
+        try {
+            Cursor result = queryInternal(uri, projection, where, whereArgs);
+            failed = false;
+            return result;
+        } finally {
+            ArielSettingsTrace.end();
+            recordOperation(ArielSettingsStats.OP_QUERY, uri, startNanos, failed);
+        }
+    }
+
+    private Cursor queryInternal(Uri uri, String[] projection, String where,
+            String[] whereArgs) {
         if (DEBUG) {
             Slog.v(LOG_TAG, "query() for user: " + UserHandle.getCallingUserId());
         }
@@ -291,7 +621,10 @@ public class ArielSettingsProvider extends ContentProvider {
                     Setting setting = getGlobalSetting(args.name);
                     return packageSettingForQuery(setting, normalizedProjection);
                 } else {
-                    return getAllGlobalSettings(projection);
+                    Cursor cursor = getAllGlobalSettings(projection);
+                    // Recorded here as dumping reads all tables too.
+                    recordAccess(mTopReads, ArielSettingsStats.TABLE_GLOBAL, null);
+                    return cursor;
                 }
             }
 
@@ -301,7 +634,10 @@ public class ArielSettingsProvider extends ContentProvider {
                     Setting setting = getSecureSetting(args.name, userId);
                     return packageSettingForQuery(setting, normalizedProjection);
                 } else {
-                    return getAllSecureSettings(userId, projection);
+                    Cursor cursor = getAllSecureSettings(userId, projection);
+                    // Recorded here as dumping reads all tables too.
+                    recordAccess(mTopReads, ArielSettingsStats.TABLE_SECURE, null);
+                    return cursor;
                 }
             }
 
@@ -311,7 +647,10 @@ public class ArielSettingsProvider extends ContentProvider {
                     Setting setting = getSystemSetting(args.name, userId);
                     return packageSettingForQuery(setting, normalizedProjection);
                 } else {
-                    return getAllSystemSettings(userId, projection);
+                    Cursor cursor = getAllSystemSettings(userId, projection);
+                    // Recorded here as dumping reads all tables too.
+                    recordAccess(mTopReads, ArielSettingsStats.TABLE_SYSTEM, null);
+                    return cursor;
                 }
             }
 
@@ -323,6 +662,19 @@ public class ArielSettingsProvider extends ContentProvider {
 
     @Override
     public Uri insert(Uri uri, ContentValues values) {
+        waitForInitialization();
+        final long startNanos = SystemClock.elapsedRealtimeNanos();
+        boolean failed = true;
+        try {
+            Uri result = insertInternal(uri, values);
+            failed = false;
+            return result;
+        } finally {
+            recordOperation(ArielSettingsStats.OP_INSERT, uri, startNanos, failed);
+        }
+    }
+
+    private Uri insertInternal(Uri uri, ContentValues values) {
         if (DEBUG) {
             Slog.v(LOG_TAG, "insert() for user: " + UserHandle.getCallingUserId());
         }
@@ -370,6 +722,19 @@ public class ArielSettingsProvider extends ContentProvider {
 
     @Override
     public int bulkInsert(Uri uri, ContentValues[] allValues) {
+        waitForInitialization();
+        final long startNanos = SystemClock.elapsedRealtimeNanos();
+        boolean failed = true;
+        try {
+            final int result = bulkInsertInternal(uri, allValues);
+            failed = false;
+            return result;
+        } finally {
+            recordOperation(ArielSettingsStats.OP_BULK_INSERT, uri, startNanos, failed);
+        }
+    }
+
+    private int bulkInsertInternal(Uri uri, ContentValues[] allValues) {
         if (DEBUG) {
             Slog.v(LOG_TAG, "bulkInsert() for user: " + UserHandle.getCallingUserId());
         }
@@ -378,7 +743,7 @@ public class ArielSettingsProvider extends ContentProvider {
         final int valuesCount = allValues.length;
         for (int i = 0; i < valuesCount; i++) {
             ContentValues values = allValues[i];
-            if (insert(uri, values) != null) {
+            if (insertInternal(uri, values) != null) {
                 insertionCount++;
             }
         }
@@ -388,6 +753,19 @@ public class ArielSettingsProvider extends ContentProvider {
 
     @Override
     public int delete(Uri uri, String where, String[] whereArgs) {
+        waitForInitialization();
+        final long startNanos = SystemClock.elapsedRealtimeNanos();
+        boolean failed = true;
+        try {
+            final int result = deleteInternal(uri, where, whereArgs);
+            failed = false;
+            return result;
+        } finally {
+            recordOperation(ArielSettingsStats.OP_DELETE, uri, startNanos, failed);
+        }
+    }
+
+    private int deleteInternal(Uri uri, String where, String[] whereArgs) {
         if (DEBUG) {
             Slog.v(LOG_TAG, "delete() for user: " + UserHandle.getCallingUserId());
         }
@@ -427,6 +805,20 @@ public class ArielSettingsProvider extends ContentProvider {
 
     @Override
     public int update(Uri uri, ContentValues values, String where, String[] whereArgs) {
+        waitForInitialization();
+        final long startNanos = SystemClock.elapsedRealtimeNanos();
+        boolean failed = true;
+        try {
+            final int result = updateInternal(uri, values, where, whereArgs);
+            failed = false;
+            return result;
+        } finally {
+            recordOperation(ArielSettingsStats.OP_UPDATE, uri, startNanos, failed);
+        }
+    }
+
+    private int updateInternal(Uri uri, ContentValues values, String where,
+            String[] whereArgs) {
         if (DEBUG) {
             Slog.v(LOG_TAG, "update() for user: " + UserHandle.getCallingUserId());
         }
@@ -466,25 +858,105 @@ public class ArielSettingsProvider extends ContentProvider {
         }
     }
 
+    /**
+     * Opens the UTF-8 encoded value of content://arielsettings/<table>/<name>
+     * for reading through a pipe, so that large values do not have to fit in
+     * a Binder transaction.
+     */
     @Override
     public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
-        throw new FileNotFoundException("Direct file access no longer supported; "
-                + "ringtone playback is available through android.media.Ringtone");
+        if (!"r".equals(mode)) {
+            throw new FileNotFoundException("Settings can be opened only for reading: " + uri);
+        }
+        if (uri.getPathSegments().size() != 2) {
+            throw new FileNotFoundException("Not a setting: " + uri);
+        }
+
+        waitForInitialization();
+        Arguments args = new Arguments(uri, null, null, false);
+        final int userId = UserHandle.getCallingUserId();
+
+        final Setting setting;
+        switch (args.table) {
+            case TABLE_GLOBAL: {
+                setting = getGlobalSetting(args.name);
+            } break;
+
+            case TABLE_SECURE: {
+                setting = getSecureSetting(args.name, userId);
+            } break;
+
+            case TABLE_SYSTEM: {
+                setting = getSystemSetting(args.name, userId);
+            } break;
+
+            default: {
+                throw new FileNotFoundException("Invalid Uri path:" + uri);
+            }
+        }
+
+        final String value = (setting != null) ? setting.getValue() : null;
+        if (value == null) {
+            throw new FileNotFoundException("No value for setting: " + uri);
+        }
+
+        return openPipeHelper(uri, null, null, value, new PipeDataWriter<String>() {
+            @Override
+            public void writeDataToPipe(ParcelFileDescriptor output, Uri uri, String mimeType,
+                    Bundle opts, String value) {
+                FileOutputStream out = new FileOutputStream(output.getFileDescriptor());
+                try {
+                    out.write(value.getBytes(StandardCharsets.UTF_8));
+                } catch (IOException e) {
+                    Slog.w(LOG_TAG, "Failed streaming setting value for " + uri, e);
+                } finally {
+                    IoUtils.closeQuietly(out);
+                }
+            }
+        });
     }
 
     @Override
     public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        waitForInitialization();
+        final List<UserInfo> users;
+        final long identity = Binder.clearCallingIdentity();
+        try {
+            users = mUserManager.getUsers(true);
+        } finally {
+            Binder.restoreCallingIdentity(identity);
+        }
+
+        // Each table is read under the lock on its own.
+        final int userCount = users.size();
+        for (int i = 0; i < userCount; i++) {
+            UserInfo user = users.get(i);
+            dumpForUser(user.id, pw);
+        }
+
+        mStartupProfile.dump(pw);
+        mLock.dump(pw);
+        mStats.dump(pw);
         synchronized (mLock) {
-            final long identity = Binder.clearCallingIdentity();
-            try {
-                List<UserInfo> users = mUserManager.getUsers(true);
-                final int userCount = users.size();
-                for (int i = 0; i < userCount; i++) {
-                    UserInfo user = users.get(i);
-                    dumpForUser(user.id, pw);
-                }
-            } finally {
-                Binder.restoreCallingIdentity(identity);
+            mSettingsRegistry.dumpPersistenceStatsLocked(pw);
+            mSettingsRegistry.dumpMemoryStatsLocked(pw);
+        }
+        mTopReads.dump(pw, "TOP READS", HEAVY_HITTER_DUMP_COUNT, mPackageManager);
+        mTopWrites.dump(pw, "TOP WRITES", HEAVY_HITTER_DUMP_COUNT, mPackageManager);
+        mWriteRateLimiter.dump(pw);
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level < ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW
+                || mInitialized.getCount() != 0) {
+            return;
+        }
+        final long waitStartNanos = mLock.beginWait();
+        synchronized (mLock) {
+            try (ArielSettingsLock.Hold hold = mLock.acquired(ArielSettingsLock.SITE_USER_STATE,
+                    waitStartNanos)) {
+                mSettingsRegistry.evictIdleSettingsLocked(TRIM_MEMORY_MIN_IDLE_MILLIS);
             }
         }
     }
@@ -534,8 +1006,11 @@ public class ArielSettingsProvider extends ContentProvider {
 
     private void registerBroadcastReceivers() {
         IntentFilter userFilter = new IntentFilter();
+        userFilter.addAction(Intent.ACTION_USER_ADDED);
         userFilter.addAction(Intent.ACTION_USER_REMOVED);
         userFilter.addAction(Intent.ACTION_USER_STOPPED);
+        userFilter.addAction(Intent.ACTION_MANAGED_PROFILE_ADDED);
+        userFilter.addAction(Intent.ACTION_MANAGED_PROFILE_REMOVED);
 
         getContext().registerReceiver(new BroadcastReceiver() {
             @Override
@@ -543,24 +1018,80 @@ public class ArielSettingsProvider extends ContentProvider {
                 final int userId = intent.getIntExtra(Intent.EXTRA_USER_HANDLE,
                         UserHandle.USER_OWNER);
 
-                switch (intent.getAction()) {
-                    case Intent.ACTION_USER_REMOVED: {
-                        mSettingsRegistry.removeUserStateLocked(userId, true);
-                    } break;
+                // The user topology may have changed.
+                synchronized (mProfileParentCache) {
+                    mProfileParentCache.clear();
+                    mProfileParentCacheGeneration++;
+                }
 
-                    case Intent.ACTION_USER_STOPPED: {
-                        mSettingsRegistry.removeUserStateLocked(userId, false);
-                    } break;
+                final long waitStartNanos = mLock.beginWait();
+                synchronized (mLock) {
+                    try (ArielSettingsLock.Hold hold = mLock.acquired(
+                            ArielSettingsLock.SITE_USER_STATE, waitStartNanos)) {
+                        switch (intent.getAction()) {
+                            case Intent.ACTION_USER_REMOVED: {
+                                mSettingsRegistry.removeUserStateLocked(userId, true);
+                            } break;
+
+                            case Intent.ACTION_USER_STOPPED: {
+                                mSettingsRegistry.removeUserStateLocked(userId, false);
+                            } break;
+                        }
+                    }
                 }
             }
         }, userFilter);
 
+        IntentFilter userSwitchFilter = new IntentFilter();
+        userSwitchFilter.addAction(Intent.ACTION_USER_STARTING);
+        userSwitchFilter.addAction(Intent.ACTION_USER_SWITCHED);
+
+        getContext().registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                final int userId = intent.getIntExtra(Intent.EXTRA_USER_HANDLE,
+                        UserHandle.USER_NULL);
+                if (userId == UserHandle.USER_NULL) {
+                    return;
+                }
+                // Load the settings of the user before its apps start reading them.
+                final long waitStartNanos = mLock.beginWait();
+                synchronized (mLock) {
+                    try (ArielSettingsLock.Hold hold = mLock.acquired(
+                            ArielSettingsLock.SITE_USER_STATE, waitStartNanos)) {
+                        mSettingsRegistry.prefetchSettingsForUserLocked(userId);
+                    }
+                }
+            }
+        }, userSwitchFilter);
+
         PackageMonitor monitor = new PackageMonitor() {
+            @Override
+            public void onPackageAdded(String packageName, int uid) {
+                mCallerCache.invalidateUid(uid);
+            }
+
+            @Override
+            public void onPackageUpdateFinished(String packageName, int uid) {
+                mCallerCache.invalidateUid(uid);
+            }
+
+            @Override
+            public boolean onPackageChanged(String packageName, int uid, String[] components) {
+                mCallerCache.invalidateUid(uid);
+                return super.onPackageChanged(packageName, uid, components);
+            }
+
             @Override
             public void onPackageRemoved(String packageName, int uid) {
+                mCallerCache.invalidateUid(uid);
+                final long waitStartNanos = mLock.beginWait();
                 synchronized (mLock) {
-                    mSettingsRegistry.onPackageRemovedLocked(packageName,
-                            UserHandle.getUserId(uid));
+                    try (ArielSettingsLock.Hold hold = mLock.acquired(
+                            ArielSettingsLock.SITE_PACKAGE_REMOVED, waitStartNanos)) {
+                        mSettingsRegistry.onPackageRemovedLocked(packageName,
+                                UserHandle.getUserId(uid));
+                    }
                 }
             }
         };
@@ -568,6 +1099,15 @@ public class ArielSettingsProvider extends ContentProvider {
         // package changes
         monitor.register(getContext(), BackgroundThread.getHandler().getLooper(),
                 UserHandle.ALL, true);
+
+        // permission changes
+        mPackageManager.addOnPermissionsChangeListener(
+                new PackageManager.OnPermissionsChangedListener() {
+                    @Override
+                    public void onPermissionsChanged(int uid) {
+                        mCallerCache.invalidateUid(uid);
+                    }
+                });
     }
 
     private Cursor getAllGlobalSettings(String[] projection) {
@@ -575,26 +1115,30 @@ public class ArielSettingsProvider extends ContentProvider {
             Slog.v(LOG_TAG, "getAllGlobalSettings()");
         }
 
+        final long waitStartNanos = mLock.beginWait();
         synchronized (mLock) {
-            // Get the settings.
-            ArielSettingsState settingsState = mSettingsRegistry.getSettingsLocked(
-                    SettingsRegistry.SETTINGS_TYPE_GLOBAL, UserHandle.USER_OWNER);
+            try (ArielSettingsLock.Hold hold = mLock.acquired(ArielSettingsLock.SITE_GET_ALL,
+                    waitStartNanos)) {
+                // Get the settings.
+                ArielSettingsState settingsState = mSettingsRegistry.getSettingsLocked(
+                        SettingsRegistry.SETTINGS_TYPE_GLOBAL, UserHandle.USER_OWNER);
 
-            List<String> names = settingsState.getSettingNamesLocked();
+                List<String> names = settingsState.getSettingNamesLocked();
 
-            final int nameCount = names.size();
+                final int nameCount = names.size();
 
-            String[] normalizedProjection = normalizeProjection(projection);
-            MatrixCursor result = new MatrixCursor(normalizedProjection, nameCount);
+                String[] normalizedProjection = normalizeProjection(projection);
+                MatrixCursor result = new MatrixCursor(normalizedProjection, nameCount);
 
-            // Anyone can get the global settings, so no security checks.
-            for (int i = 0; i < nameCount; i++) {
-                String name = names.get(i);
-                Setting setting = settingsState.getSettingLocked(name);
-                appendSettingToCursor(result, setting);
-            }
+                // Anyone can get the global settings, so no security checks.
+                for (int i = 0; i < nameCount; i++) {
+                    String name = names.get(i);
+                    Setting setting = settingsState.getSettingLocked(name);
+                    appendSettingToCursor(result, setting);
+                }
 
-            return result;
+                return result;
+            }
         }
     }
 
@@ -603,10 +1147,16 @@ public class ArielSettingsProvider extends ContentProvider {
             Slog.v(LOG_TAG, "getGlobalSetting(" + name + ")");
         }
 
+        recordAccess(mTopReads, ArielSettingsStats.TABLE_GLOBAL, name);
+
         // Get the value.
+        final long waitStartNanos = mLock.beginWait();
         synchronized (mLock) {
-            return mSettingsRegistry.getSettingLocked(SettingsRegistry.SETTINGS_TYPE_GLOBAL,
-                    UserHandle.USER_OWNER, name);
+            try (ArielSettingsLock.Hold hold = mLock.acquired(ArielSettingsLock.SITE_GET,
+                    waitStartNanos)) {
+                return mSettingsRegistry.getSettingLocked(SettingsRegistry.SETTINGS_TYPE_GLOBAL,
+                        UserHandle.USER_OWNER, name);
+            }
         }
     }
 
@@ -633,36 +1183,52 @@ public class ArielSettingsProvider extends ContentProvider {
 
     private boolean mutateGlobalSetting(String name, String value, int requestingUserId,
             int operation) {
+        return mutateGlobalSetting(name, value, null, requestingUserId, operation);
+    }
+
+    private boolean mutateGlobalSetting(String name, String value,
+            ParcelFileDescriptor valueFd, int requestingUserId, int operation) {
         // Make sure the caller can change the settings - treated as secure.
         enforceWritePermission(Manifest.permission.WRITE_ARIEL_SECURE_SETTINGS);
 
         // Resolve the userId on whose behalf the call is made.
         final int callingUserId = resolveCallingUserIdEnforcingPermissionsLocked(requestingUserId);
 
+        recordAccess(mTopWrites, ArielSettingsStats.TABLE_GLOBAL, name);
+
         // If this is a setting that is currently restricted for this user, done.
         if (isGlobalOrSecureSettingRestrictedForUser(name, callingUserId)) {
             return false;
         }
 
+        // Read a streamed value only once the caller may write it.
+        if (valueFd != null) {
+            value = readSettingValueFromFd(valueFd);
+        }
+
         // Perform the mutation.
+        final long waitStartNanos = mLock.beginWait();
         synchronized (mLock) {
-            switch (operation) {
-                case MUTATION_OPERATION_INSERT: {
-                    return mSettingsRegistry
-                            .insertSettingLocked(SettingsRegistry.SETTINGS_TYPE_GLOBAL,
-                                    UserHandle.USER_OWNER, name, value, getCallingPackage());
-                }
+            try (ArielSettingsLock.Hold hold = mLock.acquired(ArielSettingsLock.SITE_MUTATE,
+                    waitStartNanos)) {
+                switch (operation) {
+                    case MUTATION_OPERATION_INSERT: {
+                        return mSettingsRegistry
+                                .insertSettingLocked(SettingsRegistry.SETTINGS_TYPE_GLOBAL,
+                                        UserHandle.USER_OWNER, name, value, getCallingPackage());
+                    }
 
-                case MUTATION_OPERATION_DELETE: {
-                    return mSettingsRegistry.deleteSettingLocked(
-                            SettingsRegistry.SETTINGS_TYPE_GLOBAL,
-                            UserHandle.USER_OWNER, name);
-                }
+                    case MUTATION_OPERATION_DELETE: {
+                        return mSettingsRegistry.deleteSettingLocked(
+                                SettingsRegistry.SETTINGS_TYPE_GLOBAL,
+                                UserHandle.USER_OWNER, name);
+                    }
 
-                case MUTATION_OPERATION_UPDATE: {
-                    return mSettingsRegistry
-                            .updateSettingLocked(SettingsRegistry.SETTINGS_TYPE_GLOBAL,
-                                    UserHandle.USER_OWNER, name, value, getCallingPackage());
+                    case MUTATION_OPERATION_UPDATE: {
+                        return mSettingsRegistry
+                                .updateSettingLocked(SettingsRegistry.SETTINGS_TYPE_GLOBAL,
+                                        UserHandle.USER_OWNER, name, value, getCallingPackage());
+                    }
                 }
             }
         }
@@ -678,32 +1244,39 @@ public class ArielSettingsProvider extends ContentProvider {
         // Resolve the userId on whose behalf the call is made.
         final int callingUserId = resolveCallingUserIdEnforcingPermissionsLocked(userId);
 
+        // Some profile settings are cloned from the parent, resolve it without the lock.
+        final int parentUserId = getGroupParent(callingUserId);
+
+        final long waitStartNanos = mLock.beginWait();
         synchronized (mLock) {
-            List<String> names = mSettingsRegistry.getSettingsNamesLocked(
-                    SettingsRegistry.SETTINGS_TYPE_SECURE, callingUserId);
+            try (ArielSettingsLock.Hold hold = mLock.acquired(ArielSettingsLock.SITE_GET_ALL,
+                    waitStartNanos)) {
+                List<String> names = mSettingsRegistry.getSettingsNamesLocked(
+                        SettingsRegistry.SETTINGS_TYPE_SECURE, callingUserId);
 
-            final int nameCount = names.size();
+                final int nameCount = names.size();
 
-            String[] normalizedProjection = normalizeProjection(projection);
-            MatrixCursor result = new MatrixCursor(normalizedProjection, nameCount);
+                String[] normalizedProjection = normalizeProjection(projection);
+                MatrixCursor result = new MatrixCursor(normalizedProjection, nameCount);
 
-            for (int i = 0; i < nameCount; i++) {
-                String name = names.get(i);
-                // Determine the owning user as some profile settings are cloned from the parent.
-                final int owningUserId = resolveOwningUserIdForSecureSettingLocked(callingUserId,
-                        name);
+                for (int i = 0; i < nameCount; i++) {
+                    String name = names.get(i);
+                    // Determine the owning user as profile settings may be cloned from the parent.
+                    final int owningUserId = resolveOwningUserId(callingUserId, parentUserId,
+                            sSecureCloneToManagedSettings, name);
 
-                // Special case for location (sigh).
-                if (isLocationProvidersAllowedRestricted(name, callingUserId, owningUserId)) {
-                    return null;
+                    // Special case for location (sigh).
+                    if (isLocationProvidersAllowedRestricted(name, callingUserId, owningUserId)) {
+                        return null;
+                    }
+
+                    Setting setting = mSettingsRegistry.getSettingLocked(
+                            SettingsRegistry.SETTINGS_TYPE_SECURE, owningUserId, name);
+                    appendSettingToCursor(result, setting);
                 }
 
-                Setting setting = mSettingsRegistry.getSettingLocked(
-                        SettingsRegistry.SETTINGS_TYPE_SECURE, owningUserId, name);
-                appendSettingToCursor(result, setting);
+                return result;
             }
-
-            return result;
         }
     }
 
@@ -726,10 +1299,16 @@ public class ArielSettingsProvider extends ContentProvider {
             return null;
         }
 
+        recordAccess(mTopReads, ArielSettingsStats.TABLE_SECURE, name);
+
         // Get the value.
+        final long waitStartNanos = mLock.beginWait();
         synchronized (mLock) {
-            return mSettingsRegistry.getSettingLocked(SettingsRegistry.SETTINGS_TYPE_SECURE,
-                    owningUserId, name);
+            try (ArielSettingsLock.Hold hold = mLock.acquired(ArielSettingsLock.SITE_GET,
+                    waitStartNanos)) {
+                return mSettingsRegistry.getSettingLocked(SettingsRegistry.SETTINGS_TYPE_SECURE,
+                        owningUserId, name);
+            }
         }
     }
 
@@ -761,12 +1340,19 @@ public class ArielSettingsProvider extends ContentProvider {
 
     private boolean mutateSecureSetting(String name, String value, int requestingUserId,
             int operation) {
+        return mutateSecureSetting(name, value, null, requestingUserId, operation);
+    }
+
+    private boolean mutateSecureSetting(String name, String value,
+            ParcelFileDescriptor valueFd, int requestingUserId, int operation) {
         // Make sure the caller can change the settings.
         enforceWritePermission(Manifest.permission.WRITE_ARIEL_SECURE_SETTINGS);
 
         // Resolve the userId on whose behalf the call is made.
         final int callingUserId = resolveCallingUserIdEnforcingPermissionsLocked(requestingUserId);
 
+        recordAccess(mTopWrites, ArielSettingsStats.TABLE_SECURE, name);
+
         // If this is a setting that is currently restricted for this user, done.
         if (isGlobalOrSecureSettingRestrictedForUser(name, callingUserId)) {
             return false;
@@ -780,25 +1366,39 @@ public class ArielSettingsProvider extends ContentProvider {
             return false;
         }
 
+        // Read a streamed value only once the caller may write it.
+        if (valueFd != null) {
+            value = readSettingValueFromFd(valueFd);
+        }
+
+        // Drop the write if the app writes too often.
+        if (!isWriteAllowedByRateLimit()) {
+            return false;
+        }
+
         // Mutate the value.
+        final long waitStartNanos = mLock.beginWait();
         synchronized (mLock) {
-            switch (operation) {
-                case MUTATION_OPERATION_INSERT: {
-                    return mSettingsRegistry
-                            .insertSettingLocked(SettingsRegistry.SETTINGS_TYPE_SECURE,
-                                    owningUserId, name, value, getCallingPackage());
-                }
+            try (ArielSettingsLock.Hold hold = mLock.acquired(ArielSettingsLock.SITE_MUTATE,
+                    waitStartNanos)) {
+                switch (operation) {
+                    case MUTATION_OPERATION_INSERT: {
+                        return mSettingsRegistry
+                                .insertSettingLocked(SettingsRegistry.SETTINGS_TYPE_SECURE,
+                                        owningUserId, name, value, getCallingPackage());
+                    }
 
-                case MUTATION_OPERATION_DELETE: {
-                    return mSettingsRegistry.deleteSettingLocked(
-                            SettingsRegistry.SETTINGS_TYPE_SECURE,
-                            owningUserId, name);
-                }
+                    case MUTATION_OPERATION_DELETE: {
+                        return mSettingsRegistry.deleteSettingLocked(
+                                SettingsRegistry.SETTINGS_TYPE_SECURE,
+                                owningUserId, name);
+                    }
 
-                case MUTATION_OPERATION_UPDATE: {
-                    return mSettingsRegistry
-                            .updateSettingLocked(SettingsRegistry.SETTINGS_TYPE_SECURE,
-                                    owningUserId, name, value, getCallingPackage());
+                    case MUTATION_OPERATION_UPDATE: {
+                        return mSettingsRegistry
+                                .updateSettingLocked(SettingsRegistry.SETTINGS_TYPE_SECURE,
+                                        owningUserId, name, value, getCallingPackage());
+                    }
                 }
             }
         }
@@ -814,28 +1414,35 @@ public class ArielSettingsProvider extends ContentProvider {
         // Resolve the userId on whose behalf the call is made.
         final int callingUserId = resolveCallingUserIdEnforcingPermissionsLocked(userId);
 
+        // Some profile settings are cloned from the parent, resolve it without the lock.
+        final int parentUserId = getGroupParent(callingUserId);
+
+        final long waitStartNanos = mLock.beginWait();
         synchronized (mLock) {
-            List<String> names = mSettingsRegistry.getSettingsNamesLocked(
-                    SettingsRegistry.SETTINGS_TYPE_SYSTEM, callingUserId);
+            try (ArielSettingsLock.Hold hold = mLock.acquired(ArielSettingsLock.SITE_GET_ALL,
+                    waitStartNanos)) {
+                List<String> names = mSettingsRegistry.getSettingsNamesLocked(
+                        SettingsRegistry.SETTINGS_TYPE_SYSTEM, callingUserId);
 
-            final int nameCount = names.size();
+                final int nameCount = names.size();
 
-            String[] normalizedProjection = normalizeProjection(projection);
-            MatrixCursor result = new MatrixCursor(normalizedProjection, nameCount);
+                String[] normalizedProjection = normalizeProjection(projection);
+                MatrixCursor result = new MatrixCursor(normalizedProjection, nameCount);
 
-            for (int i = 0; i < nameCount; i++) {
-                String name = names.get(i);
+                for (int i = 0; i < nameCount; i++) {
+                    String name = names.get(i);
 
-                // Determine the owning user as some profile settings are cloned from the parent.
-                final int owningUserId = resolveOwningUserIdForSystemSettingLocked(callingUserId,
-                        name);
+                    // Determine the owning user as profile settings may be cloned from the parent.
+                    final int owningUserId = resolveOwningUserId(callingUserId, parentUserId,
+                            sSystemCloneToManagedSettings, name);
 
-                Setting setting = mSettingsRegistry.getSettingLocked(
-                        SettingsRegistry.SETTINGS_TYPE_SYSTEM, owningUserId, name);
-                appendSettingToCursor(result, setting);
-            }
+                    Setting setting = mSettingsRegistry.getSettingLocked(
+                            SettingsRegistry.SETTINGS_TYPE_SYSTEM, owningUserId, name);
+                    appendSettingToCursor(result, setting);
+                }
 
-            return result;
+                return result;
+            }
         }
     }
 
@@ -850,10 +1457,16 @@ public class ArielSettingsProvider extends ContentProvider {
         // Determine the owning user as some profile settings are cloned from the parent.
         final int owningUserId = resolveOwningUserIdForSystemSettingLocked(callingUserId, name);
 
+        recordAccess(mTopReads, ArielSettingsStats.TABLE_SYSTEM, name);
+
         // Get the value.
+        final long waitStartNanos = mLock.beginWait();
         synchronized (mLock) {
-            return mSettingsRegistry.getSettingLocked(SettingsRegistry.SETTINGS_TYPE_SYSTEM,
-                    owningUserId, name);
+            try (ArielSettingsLock.Hold hold = mLock.acquired(ArielSettingsLock.SITE_GET,
+                    waitStartNanos)) {
+                return mSettingsRegistry.getSettingLocked(SettingsRegistry.SETTINGS_TYPE_SYSTEM,
+                        owningUserId, name);
+            }
         }
     }
 
@@ -885,6 +1498,11 @@ public class ArielSettingsProvider extends ContentProvider {
 
     private boolean mutateSystemSetting(String name, String value, int runAsUserId,
             int operation) {
+        return mutateSystemSetting(name, value, null, runAsUserId, operation);
+    }
+
+    private boolean mutateSystemSetting(String name, String value,
+            ParcelFileDescriptor valueFd, int runAsUserId, int operation) {
         if (!hasWriteSecureSettingsPermission()) {
             // If the caller doesn't hold WRITE_ARIEL_SECURE_SETTINGS, we verify whether this
             // operation is allowed for the calling package through appops.
@@ -900,6 +1518,8 @@ public class ArielSettingsProvider extends ContentProvider {
         // Resolve the userId on whose behalf the call is made.
         final int callingUserId = resolveCallingUserIdEnforcingPermissionsLocked(runAsUserId);
 
+        recordAccess(mTopWrites, ArielSettingsStats.TABLE_SYSTEM, name);
+
         // Determine the owning user as some profile settings are cloned from the parent.
         final int owningUserId = resolveOwningUserIdForSystemSettingLocked(callingUserId, name);
 
@@ -908,42 +1528,375 @@ public class ArielSettingsProvider extends ContentProvider {
             return false;
         }
 
-        // Mutate the value.
-        synchronized (mLock) {
-            switch (operation) {
-                case MUTATION_OPERATION_INSERT: {
-                    validateSystemSettingValue(name, value);
-                    return mSettingsRegistry
-                            .insertSettingLocked(SettingsRegistry.SETTINGS_TYPE_SYSTEM,
-                                    owningUserId, name, value, getCallingPackage());
-                }
+        // Read a streamed value only once the caller may write it.
+        if (valueFd != null) {
+            value = readSettingValueFromFd(valueFd);
+        }
 
-                case MUTATION_OPERATION_DELETE: {
-                    return mSettingsRegistry.deleteSettingLocked(
-                            SettingsRegistry.SETTINGS_TYPE_SYSTEM,
-                            owningUserId, name);
-                }
+        // Validate the value before taking the lock.
+        if (operation == MUTATION_OPERATION_INSERT || operation == MUTATION_OPERATION_UPDATE) {
+            validateSystemSettingValue(name, value);
+        }
 
-                case MUTATION_OPERATION_UPDATE: {
-                    validateSystemSettingValue(name, value);
-                    return mSettingsRegistry
-                            .updateSettingLocked(SettingsRegistry.SETTINGS_TYPE_SYSTEM,
-                                    owningUserId, name, value, getCallingPackage());
-                }
+        // Drop the write if the app writes too often, invalid values take no token.
+        if (!isWriteAllowedByRateLimit()) {
+            return false;
+        }
+
+        // Mutate the value.
+        final long waitStartNanos = mLock.beginWait();
+        synchronized (mLock) {
+            try (ArielSettingsLock.Hold hold = mLock.acquired(ArielSettingsLock.SITE_MUTATE,
+                    waitStartNanos)) {
+                switch (operation) {
+                    case MUTATION_OPERATION_INSERT: {
+                        return mSettingsRegistry
+                                .insertSettingLocked(SettingsRegistry.SETTINGS_TYPE_SYSTEM,
+                                        owningUserId, name, value, getCallingPackage());
+                    }
+
+                    case MUTATION_OPERATION_DELETE: {
+                        return mSettingsRegistry.deleteSettingLocked(
+                                SettingsRegistry.SETTINGS_TYPE_SYSTEM,
+                                owningUserId, name);
+                    }
+
+                    case MUTATION_OPERATION_UPDATE: {
+                        return mSettingsRegistry
+                                .updateSettingLocked(SettingsRegistry.SETTINGS_TYPE_SYSTEM,
+                                        owningUserId, name, value, getCallingPackage());
+                    }
+                }
+
+                return false;
             }
+        }
+    }
 
-            return false;
+    private void exportSnapshot(String table, int requestingUserId, ParcelFileDescriptor fd) {
+        if (DEBUG) {
+            Slog.v(LOG_TAG, "exportSnapshot(" + table + ", " + requestingUserId + ")");
+        }
+
+        try {
+            // The snapshot has secure settings, so treated as secure.
+            enforceWritePermission(Manifest.permission.WRITE_ARIEL_SECURE_SETTINGS);
+
+            // Resolve the userId on whose behalf the call is made.
+            final int callingUserId = resolveCallingUserIdEnforcingPermissionsLocked(
+                    requestingUserId);
+
+            // Take a consistent copy and write it with no lock held.
+            final List<ArielSettingsSnapshot.Table> tables;
+            final long waitStartNanos = mLock.beginWait();
+            synchronized (mLock) {
+                try (ArielSettingsLock.Hold hold = mLock.acquired(ArielSettingsLock.SITE_BULK,
+                        waitStartNanos)) {
+                    tables = mSettingsRegistry.exportSnapshotLocked(callingUserId,
+                            getSnapshotTypes(table));
+                }
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ArielSettingsSnapshot.write(new DataOutputStream(bytes), tables);
+            writeBytesToFd(fd, bytes.toByteArray(), SNAPSHOT_IO_TIMEOUT_MILLIS);
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed writing settings snapshot", e);
+        } finally {
+            IoUtils.closeQuietly(fd);
         }
     }
 
+    private void importSnapshot(String table, int requestingUserId, ParcelFileDescriptor fd) {
+        if (DEBUG) {
+            Slog.v(LOG_TAG, "importSnapshot(" + table + ", " + requestingUserId + ")");
+        }
+
+        try {
+            // Make sure the caller can change the settings - treated as secure.
+            enforceWritePermission(Manifest.permission.WRITE_ARIEL_SECURE_SETTINGS);
+
+            // Resolve the userId on whose behalf the call is made.
+            final int callingUserId = resolveCallingUserIdEnforcingPermissionsLocked(
+                    requestingUserId);
+
+            final int[] types = getSnapshotTypes(table);
+
+            // Read and validate everything first as the snapshot is applied atomically.
+            List<ArielSettingsSnapshot.Table> snapshotTables = ArielSettingsSnapshot.read(
+                    new DataInputStream(new ByteArrayInputStream(readBytesFromFd(fd,
+                            MAX_SNAPSHOT_BYTES, SNAPSHOT_IO_TIMEOUT_MILLIS))));
+            final int tableCount = snapshotTables.size();
+            ArrayList<ArielSettingsSnapshot.Table> tables = new ArrayList<>(tableCount);
+            ArraySet<String> seenTables = new ArraySet<>(tableCount);
+            for (int i = 0; i < tableCount; i++) {
+                ArielSettingsSnapshot.Table snapshotTable = snapshotTables.get(i);
+                final int type = getSettingsTypeForTable(snapshotTable.table);
+                if (!ArrayUtils.contains(types, type)) {
+                    throw new IllegalArgumentException("Unexpected table in snapshot: "
+                            + snapshotTable.table);
+                }
+                // The quota of a table is checked per table before importing.
+                if (!seenTables.add(snapshotTable.table)) {
+                    throw new IllegalArgumentException("Duplicate table in snapshot: "
+                            + snapshotTable.table);
+                }
+                // The package names in the snapshot are not trusted, the settings
+                // are attributed to the caller.
+                ArielSettingsSnapshot.Table importedTable = new ArielSettingsSnapshot.Table(
+                        snapshotTable.table, snapshotTable.version, snapshotTable.generation);
+                final int settingCount = snapshotTable.size();
+                for (int j = 0; j < settingCount; j++) {
+                    String name = snapshotTable.names.get(j);
+                    String value = snapshotTable.values.get(j);
+                    if (!isKeyValid(name)) {
+                        throw new IllegalArgumentException("Invalid setting name: " + name);
+                    }
+                    if (type == SettingsRegistry.SETTINGS_TYPE_SYSTEM) {
+                        validateSystemSettingValue(name, value);
+                    }
+                    // Skip what a single insert would not write, throw what it would.
+                    if (isBatchInsertAllowed(type, callingUserId, name)) {
+                        importedTable.add(name, value, null, snapshotTable.ids.get(j));
+                    }
+                }
+                tables.add(importedTable);
+            }
+
+            // Drop the import if the app writes too often, as for a single insert.
+            if (!isWriteAllowedByRateLimit()) {
+                return;
+            }
+
+            final long waitStartNanos = mLock.beginWait();
+            synchronized (mLock) {
+                try (ArielSettingsLock.Hold hold = mLock.acquired(ArielSettingsLock.SITE_BULK,
+                        waitStartNanos)) {
+                    mSettingsRegistry.importSnapshotLocked(callingUserId, tables,
+                            getCallingPackage());
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Failed reading settings snapshot", e);
+        } finally {
+            IoUtils.closeQuietly(fd);
+        }
+    }
+
+    private Bundle getBackupChanges(String table, int requestingUserId) {
+        // Backup has secure settings, so treated as secure.
+        enforceWritePermission(Manifest.permission.WRITE_ARIEL_SECURE_SETTINGS);
+
+        // Resolve the userId on whose behalf the call is made.
+        final int callingUserId = resolveCallingUserIdEnforcingPermissionsLocked(
+                requestingUserId);
+
+        final int type = getSettingsTypeForTable(table);
+        final long waitStartNanos = mLock.beginWait();
+        synchronized (mLock) {
+            try (ArielSettingsLock.Hold hold = mLock.acquired(ArielSettingsLock.SITE_BULK,
+                    waitStartNanos)) {
+                return mSettingsRegistry.getBackupChangesLocked(type, callingUserId);
+            }
+        }
+    }
+
+    private Bundle restoreSettings(String table, int requestingUserId, Bundle args) {
+        // Make sure the caller can change the settings - treated as secure.
+        enforceWritePermission(Manifest.permission.WRITE_ARIEL_SECURE_SETTINGS);
+
+        // Resolve the userId on whose behalf the call is made.
+        final int callingUserId = resolveCallingUserIdEnforcingPermissionsLocked(
+                requestingUserId);
+
+        final int type = getSettingsTypeForTable(table);
+        List<String> names = (args != null) ? args.getStringArrayList(BACKUP_KEY_NAMES) : null;
+        List<String> values = (args != null) ? args.getStringArrayList(BACKUP_KEY_VALUES) : null;
+        if (names == null || values == null || names.size() != values.size()) {
+            throw new IllegalArgumentException("Restore needs as many values as names");
+        }
+
+        // Restore is lenient - bad entries are skipped rather than failing the set.
+        ArrayList<String> validNames = new ArrayList<>(names.size());
+        ArrayList<String> validValues = new ArrayList<>(values.size());
+        final int nameCount = names.size();
+        for (int i = 0; i < nameCount; i++) {
+            String name = names.get(i);
+            String value = values.get(i);
+            if (!isKeyValid(name)) {
+                continue;
+            }
+            if (type == SettingsRegistry.SETTINGS_TYPE_SYSTEM) {
+                try {
+                    validateSystemSettingValue(name, value);
+                } catch (IllegalArgumentException e) {
+                    Slog.w(LOG_TAG, "Skipping invalid restored value for: " + name);
+                    continue;
+                }
+            }
+            // Skip what a single insert by the caller would not write.
+            try {
+                if (!isBatchInsertAllowed(type, callingUserId, name)) {
+                    continue;
+                }
+            } catch (SecurityException e) {
+                Slog.w(LOG_TAG, "Skipping restricted restored setting: " + name);
+                continue;
+            }
+            validNames.add(name);
+            validValues.add(value);
+        }
+
+        // Drop the restore if the app writes too often, as for a single insert.
+        if (!isWriteAllowedByRateLimit()) {
+            Bundle result = new Bundle();
+            result.putInt(BACKUP_KEY_RESTORED_COUNT, 0);
+            return result;
+        }
+
+        final int restoredCount;
+        final long waitStartNanos = mLock.beginWait();
+        synchronized (mLock) {
+            try (ArielSettingsLock.Hold hold = mLock.acquired(ArielSettingsLock.SITE_BULK,
+                    waitStartNanos)) {
+                restoredCount = mSettingsRegistry.applyBatchLocked(type, callingUserId,
+                        validNames, validValues, getCallingPackage());
+            }
+        }
+
+        Bundle result = new Bundle();
+        result.putInt(BACKUP_KEY_RESTORED_COUNT, restoredCount);
+        return result;
+    }
+
+    private void commitBackup(String table, int requestingUserId, long generation) {
+        // Backup has secure settings, so treated as secure.
+        enforceWritePermission(Manifest.permission.WRITE_ARIEL_SECURE_SETTINGS);
+
+        // Resolve the userId on whose behalf the call is made.
+        final int callingUserId = resolveCallingUserIdEnforcingPermissionsLocked(
+                requestingUserId);
+
+        if (generation < 0) {
+            throw new IllegalArgumentException("Invalid backup generation: " + generation);
+        }
+
+        final int type = getSettingsTypeForTable(table);
+        final long waitStartNanos = mLock.beginWait();
+        synchronized (mLock) {
+            try (ArielSettingsLock.Hold hold = mLock.acquired(ArielSettingsLock.SITE_BULK,
+                    waitStartNanos)) {
+                mSettingsRegistry.commitBackupLocked(type, callingUserId, generation);
+            }
+        }
+    }
+
+    private Bundle getStats(Bundle args) {
+        getContext().enforceCallingOrSelfPermission(Manifest.permission.DUMP,
+                "Permission denial: reading settings provider stats");
+
+        final boolean reset = args != null && args.getBoolean(STATS_KEY_RESET);
+        Bundle stats = new Bundle();
+        mLock.writeToBundle(stats);
+        mStats.writeToBundle(stats);
+        synchronized (mLock) {
+            mSettingsRegistry.writePersistenceStatsToBundleLocked(stats);
+            if (reset) {
+                mSettingsRegistry.resetStatsLocked();
+            }
+        }
+
+        if (reset) {
+            mLock.reset();
+            mStats.reset();
+            mTopReads.reset();
+            mTopWrites.reset();
+            mWriteRateLimiter.resetCounts();
+        }
+        return stats;
+    }
+
+    private void recordOperation(int op, Uri uri, long startNanos, boolean failed) {
+        final List<String> segments = uri.getPathSegments();
+        final int table = !segments.isEmpty()
+                ? getStatsTable(segments.get(0)) : ArielSettingsStats.TABLE_NONE;
+        recordOperation(UserHandle.getCallingUserId(), op, table, startNanos, failed);
+    }
+
+    private void recordOperation(int userId, int op, int table, long startNanos,
+            boolean failed) {
+        mStats.record(userId, op, table, SystemClock.elapsedRealtimeNanos() - startNanos,
+                failed);
+    }
+
+    // Only called once the caller passed the permission checks, and never under mLock.
+    // Keyed by uid as resolving the calling package may call into app ops.
+    private void recordAccess(ArielSettingsHeavyHitters accesses, int table, String name) {
+        accesses.record(Binder.getCallingUid(), table, name);
+    }
+
+    private static int getStatsTable(String table) {
+        switch (table) {
+            case TABLE_GLOBAL: {
+                return ArielSettingsStats.TABLE_GLOBAL;
+            }
+            case TABLE_SECURE: {
+                return ArielSettingsStats.TABLE_SECURE;
+            }
+            case TABLE_SYSTEM: {
+                return ArielSettingsStats.TABLE_SYSTEM;
+            }
+            default: {
+                return ArielSettingsStats.TABLE_NONE;
+            }
+        }
+    }
+
+    private static int[] getSnapshotTypes(String table) {
+        if (table == null) {
+            return new int[] {
+                    SettingsRegistry.SETTINGS_TYPE_GLOBAL,
+                    SettingsRegistry.SETTINGS_TYPE_SECURE,
+                    SettingsRegistry.SETTINGS_TYPE_SYSTEM
+            };
+        }
+        return new int[] {getSettingsTypeForTable(table)};
+    }
+
+    private static int getSettingsTypeForTable(String table) {
+        if (table != null) {
+            switch (table) {
+                case TABLE_GLOBAL: {
+                    return SettingsRegistry.SETTINGS_TYPE_GLOBAL;
+                }
+
+                case TABLE_SECURE: {
+                    return SettingsRegistry.SETTINGS_TYPE_SECURE;
+                }
+
+                case TABLE_SYSTEM: {
+                    return SettingsRegistry.SETTINGS_TYPE_SYSTEM;
+                }
+            }
+        }
+        throw new IllegalArgumentException("Invalid table: " + table);
+    }
+
     private boolean hasWriteSecureSettingsPermission() {
         // Write secure settings is a more protected permission. If caller has it we are good.
-        if (getContext().checkCallingOrSelfPermission(Manifest.permission.WRITE_ARIEL_SECURE_SETTINGS)
-                == PackageManager.PERMISSION_GRANTED) {
-            return true;
-        }
+        return hasCallingOrSelfPermission(Manifest.permission.WRITE_ARIEL_SECURE_SETTINGS);
+    }
 
-        return false;
+    private boolean hasCallingOrSelfPermission(String permission) {
+        final int callingUid = Binder.getCallingUid();
+        Boolean granted = mCallerCache.getPermission(callingUid, permission);
+        if (granted != null) {
+            return granted;
+        }
+        final int cacheGeneration = mCallerCache.getGeneration();
+        final boolean hasPermission = getContext().checkCallingOrSelfPermission(permission)
+                == PackageManager.PERMISSION_GRANTED;
+        mCallerCache.putPermission(callingUid, permission, hasPermission, cacheGeneration);
+        return hasPermission;
     }
 
     private void validateSystemSettingValue(String name, String value) {
@@ -963,6 +1916,38 @@ public class ArielSettingsProvider extends ContentProvider {
         return false;
     }
 
+    /**
+     * Applies to an entry of a batch the checks of a single insert of the
+     * setting by the caller, see the mutate methods.
+     *
+     * @return Whether the entry may be written, false if to be skipped.
+     * @throws SecurityException If the calling package may not write the setting.
+     */
+    private boolean isBatchInsertAllowed(int type, int callingUserId, String name) {
+        switch (type) {
+            case SettingsRegistry.SETTINGS_TYPE_GLOBAL: {
+                return !isGlobalOrSecureSettingRestrictedForUser(name, callingUserId);
+            }
+
+            case SettingsRegistry.SETTINGS_TYPE_SECURE: {
+                return !isGlobalOrSecureSettingRestrictedForUser(name, callingUserId)
+                        && resolveOwningUserIdForSecureSettingLocked(callingUserId, name)
+                                == callingUserId;
+            }
+
+            case SettingsRegistry.SETTINGS_TYPE_SYSTEM: {
+                enforceRestrictedSystemSettingsMutationForCallingPackage(
+                        MUTATION_OPERATION_INSERT, name);
+                return resolveOwningUserIdForSystemSettingLocked(callingUserId, name)
+                        == callingUserId;
+            }
+
+            default: {
+                throw new IllegalArgumentException("Invalid settings type: " + type);
+            }
+        }
+    }
+
     private boolean isGlobalOrSecureSettingRestrictedForUser(String setting, int userId) {
         return false;
         //return mUserManager.hasUserRestriction(restriction, new UserHandle(userId));
@@ -977,7 +1962,11 @@ public class ArielSettingsProvider extends ContentProvider {
     }
 
     private int resolveOwningUserIdLocked(int userId, Set<String> keys, String name) {
-        final int parentId = getGroupParentLocked(userId);
+        return resolveOwningUserId(userId, getGroupParent(userId), keys, name);
+    }
+
+    private static int resolveOwningUserId(int userId, int parentId, Set<String> keys,
+            String name) {
         if (parentId != userId && keys.contains(name)) {
             return parentId;
         }
@@ -1003,16 +1992,15 @@ public class ArielSettingsProvider extends ContentProvider {
                 }
 
                 // The calling package is already verified.
-                PackageInfo packageInfo = getCallingPackageInfoOrThrow();
+                PackageFacts packageFacts = getCallingPackageFactsOrThrow();
 
                 // Privileged apps can do whatever they want.
-                if ((packageInfo.applicationInfo.privateFlags
-                        & ApplicationInfo.PRIVATE_FLAG_PRIVILEGED) != 0) {
+                if (packageFacts.privileged) {
                     return;
                 }
 
                 warnOrThrowForUndesiredSecureSettingsMutationForTargetSdk(
-                        packageInfo.applicationInfo.targetSdkVersion, name);
+                        packageFacts.targetSdkVersion, name);
             } break;
 
             case MUTATION_OPERATION_DELETE: {
@@ -1023,49 +2011,84 @@ public class ArielSettingsProvider extends ContentProvider {
                 }
 
                 // The calling package is already verified.
-                PackageInfo packageInfo = getCallingPackageInfoOrThrow();
+                PackageFacts packageFacts = getCallingPackageFactsOrThrow();
 
                 // Privileged apps can do whatever they want.
-                if ((packageInfo.applicationInfo.privateFlags &
-                        ApplicationInfo.PRIVATE_FLAG_PRIVILEGED) != 0) {
+                if (packageFacts.privileged) {
                     return;
                 }
 
                 warnOrThrowForUndesiredSecureSettingsMutationForTargetSdk(
-                        packageInfo.applicationInfo.targetSdkVersion, name);
+                        packageFacts.targetSdkVersion, name);
             } break;
         }
     }
 
-    private PackageInfo getCallingPackageInfoOrThrow() {
+    private boolean isWriteAllowedByRateLimit() {
+        // System/root/shell are trusted not to flood the settings, as for the restrictions.
+        final int callingUid = Binder.getCallingUid();
+        if (callingUid == Process.SYSTEM_UID
+                || callingUid == Process.SHELL_UID
+                || callingUid == Process.ROOT_UID) {
+            return true;
+        }
+        return mWriteRateLimiter.tryAcquire(callingUid, getCallingPackage());
+    }
+
+    private PackageFacts getCallingPackageFactsOrThrow() {
+        final int callingUid = Binder.getCallingUid();
+        final String callingPackage = getCallingPackage();
+        PackageFacts packageFacts = mCallerCache.getPackageFacts(callingUid, callingPackage);
+        if (packageFacts != null) {
+            return packageFacts;
+        }
+        final int cacheGeneration = mCallerCache.getGeneration();
+        final PackageInfo packageInfo;
         try {
-            return mPackageManager.getPackageInfo(getCallingPackage(), 0);
+            packageInfo = mPackageManager.getPackageInfo(callingPackage, 0);
         } catch (PackageManager.NameNotFoundException e) {
             throw new IllegalStateException("Calling package doesn't exist");
         }
+        packageFacts = new PackageFacts(packageInfo.applicationInfo.targetSdkVersion,
+                (packageInfo.applicationInfo.privateFlags
+                        & ApplicationInfo.PRIVATE_FLAG_PRIVILEGED) != 0);
+        mCallerCache.putPackageFacts(callingUid, callingPackage, packageFacts, cacheGeneration);
+        return packageFacts;
     }
 
-    private int getGroupParentLocked(int userId) {
+    private int getGroupParent(int userId) {
         // Most frequent use case.
         if (userId == UserHandle.USER_OWNER) {
             return userId;
         }
-        // We are in the same process with the user manager and the returned
-        // user info is a cached instance, so just look up instead of cache.
+        final int cacheGeneration;
+        synchronized (mProfileParentCache) {
+            final int cachedParentId = mProfileParentCache.get(userId, UserHandle.USER_NULL);
+            if (cachedParentId != UserHandle.USER_NULL) {
+                return cachedParentId;
+            }
+            cacheGeneration = mProfileParentCacheGeneration;
+        }
+        final int parentId;
         final long identity = Binder.clearCallingIdentity();
         try {
-            // Just a lookup and not reentrant, so holding a lock is fine.
+            // Never called with mLock held, as this calls into the user manager.
             UserInfo userInfo = mUserManager.getProfileParent(userId);
-            return (userInfo != null) ? userInfo.id : userId;
+            parentId = (userInfo != null) ? userInfo.id : userId;
         } finally {
             Binder.restoreCallingIdentity(identity);
         }
+        synchronized (mProfileParentCache) {
+            if (cacheGeneration == mProfileParentCacheGeneration) {
+                mProfileParentCache.put(userId, parentId);
+            }
+        }
+        return parentId;
     }
 
     private void enforceWritePermission(String permission) {
         Slog.v(LOG_TAG,"Checking for permission on secure settings: "+permission);
-        if (getContext().checkCallingOrSelfPermission(permission)
-                != PackageManager.PERMISSION_GRANTED) {
+        if (!hasCallingOrSelfPermission(permission)) {
             throw new SecurityException("Permission denial: writing to settings requires:"
                     + permission);
         }
@@ -1118,6 +2141,116 @@ public class ArielSettingsProvider extends ContentProvider {
         return (args != null) ? args.getString(ArielSettings.NameValueTable.VALUE) : null;
     }
 
+    private static ParcelFileDescriptor getFdArgument(Bundle args) {
+        ParcelFileDescriptor fd = (args != null)
+                ? (ParcelFileDescriptor) args.getParcelable(CALL_METHOD_FD_KEY) : null;
+        if (fd == null) {
+            throw new IllegalArgumentException("Missing file descriptor: " + CALL_METHOD_FD_KEY);
+        }
+        return fd;
+    }
+
+    private void insertSettingFromFd(int type, String name, Bundle args,
+            int requestingUserId) {
+        ParcelFileDescriptor valueFd = getFdArgument(args);
+        try {
+            switch (type) {
+                case SettingsRegistry.SETTINGS_TYPE_GLOBAL: {
+                    mutateGlobalSetting(name, null, valueFd, requestingUserId,
+                            MUTATION_OPERATION_INSERT);
+                } break;
+
+                case SettingsRegistry.SETTINGS_TYPE_SECURE: {
+                    mutateSecureSetting(name, null, valueFd, requestingUserId,
+                            MUTATION_OPERATION_INSERT);
+                } break;
+
+                case SettingsRegistry.SETTINGS_TYPE_SYSTEM: {
+                    mutateSystemSetting(name, null, valueFd, requestingUserId,
+                            MUTATION_OPERATION_INSERT);
+                } break;
+            }
+        } finally {
+            // Closed even if not read as the caller is not allowed to write.
+            IoUtils.closeQuietly(valueFd);
+        }
+    }
+
+    /**
+     * Reads a setting value until the end of the stream, failing if the
+     * value is too large or the caller does not finish writing it in time.
+     */
+    private static String readSettingValueFromFd(ParcelFileDescriptor fd) {
+        return new String(readBytesFromFd(fd, MAX_STREAMED_VALUE_BYTES,
+                STREAMED_VALUE_READ_TIMEOUT_MILLIS), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads until the end of the stream, failing if there are more than the
+     * given bytes or the caller does not finish writing them in time.
+     */
+    private static byte[] readBytesFromFd(ParcelFileDescriptor fd, int maxBytes,
+            long timeoutMillis) {
+        final FileDescriptor fileDescriptor = fd.getFileDescriptor();
+        final long deadlineMillis = SystemClock.uptimeMillis() + timeoutMillis;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        try {
+            while (true) {
+                final long remainingMillis = deadlineMillis - SystemClock.uptimeMillis();
+                if (remainingMillis <= 0) {
+                    throw new IllegalArgumentException("Timed out reading from caller");
+                }
+                StructPollfd pollFd = new StructPollfd();
+                pollFd.fd = fileDescriptor;
+                pollFd.events = (short) OsConstants.POLLIN;
+                if (Os.poll(new StructPollfd[] {pollFd}, (int) remainingMillis) == 0) {
+                    continue;
+                }
+                final int readCount = Os.read(fileDescriptor, buffer, 0, buffer.length);
+                if (readCount <= 0) {
+                    break;
+                }
+                if (bytes.size() + readCount > maxBytes) {
+                    throw new IllegalArgumentException("Too much data from caller");
+                }
+                bytes.write(buffer, 0, readCount);
+            }
+            return bytes.toByteArray();
+        } catch (ErrnoException | InterruptedIOException e) {
+            throw new IllegalStateException("Failed reading from caller", e);
+        }
+    }
+
+    /**
+     * Writes all the bytes, failing if the caller does not read them in time.
+     */
+    private static void writeBytesToFd(ParcelFileDescriptor fd, byte[] bytes,
+            long timeoutMillis) {
+        final FileDescriptor fileDescriptor = fd.getFileDescriptor();
+        final long deadlineMillis = SystemClock.uptimeMillis() + timeoutMillis;
+        int offset = 0;
+        try {
+            while (offset < bytes.length) {
+                final long remainingMillis = deadlineMillis - SystemClock.uptimeMillis();
+                if (remainingMillis <= 0) {
+                    throw new IllegalArgumentException("Timed out writing to caller");
+                }
+                StructPollfd pollFd = new StructPollfd();
+                pollFd.fd = fileDescriptor;
+                pollFd.events = (short) OsConstants.POLLOUT;
+                if (Os.poll(new StructPollfd[] {pollFd}, (int) remainingMillis) == 0) {
+                    continue;
+                }
+                // A pipe ready for writing takes this much without blocking.
+                final int writeCount = Math.min(bytes.length - offset, PIPE_WRITE_CHUNK_BYTES);
+                offset += Os.write(fileDescriptor, bytes, offset, writeCount);
+            }
+        } catch (ErrnoException | InterruptedIOException e) {
+            throw new IllegalStateException("Failed writing to caller", e);
+        }
+    }
+
     private static String getValidTableOrThrow(Uri uri) {
         if (uri.getPathSegments().size() > 0) {
             String table = uri.getPathSegments().get(0);
@@ -1157,7 +2290,8 @@ public class ArielSettingsProvider extends ContentProvider {
     private static void appendSettingToCursor(MatrixCursor cursor, Setting setting) {
         final int columnCount = cursor.getColumnCount();
 
-        String[] values =  new String[columnCount];
+        // The id is formatted by the cursor only if a client reads it as a string.
+        Object[] values =  new Object[columnCount];
 
         for (int i = 0; i < columnCount; i++) {
             String column = cursor.getColumnName(i);
@@ -1287,15 +2421,48 @@ public class ArielSettingsProvider extends ContentProvider {
         private static final String SETTINGS_FILE_SYSTEM = "arielsettings_system.xml";
         private static final String SETTINGS_FILE_SECURE = "arielsettings_secure.xml";
 
+        private static final long DATA_CHANGED_COALESCE_DELAY_MILLIS = 1000;
+
+        private static final String TAG_DEFAULTS = "ariel-settings-defaults";
+        private static final String ATTR_DEFAULT_NAME = "name";
+        private static final String ATTR_DEFAULT_VALUE = "value";
+
         private final SparseArray<ArielSettingsState> mSettingsStates = new SparseArray<>();
 
+        // Read-only default values per settings type shared by all users.
+        private final SparseArray<ArielSettingsState> mDefaultsStates = new SparseArray<>();
+
         private final BackupManager mBackupManager;
 
         private final Handler mHandler;
 
+        private final BackgroundHandler mBackgroundHandler = new BackgroundHandler();
+
+        private final long mIdleEvictionMillis = SystemProperties.getLong(
+                PROPERTY_IDLE_EVICTION_MILLIS, DEFAULT_IDLE_EVICTION_MILLIS);
+
+        // Uptime of the last access to each loaded state.
+        private final SparseLongArray mLastAccessMillis = new SparseLongArray();
+
+        // States dropped from memory and not reloaded yet.
+        private final SparseBooleanArray mEvictedKeys = new SparseBooleanArray();
+
+        private long mEvictionCount;
+
+        private long mPrefetchCount;
+
+        private final ArielSettingsHistogram mReloadTimes = new ArielSettingsHistogram();
+
+        // Bumped by every published state, so a prefetch can tell a table may have
+        // been loaded, and so written, since it checked.
+        private int mPublishCount;
+
         public SettingsRegistry() {
             mBackupManager = new BackupManager(getContext());
             mHandler = new MyHandler(getContext().getMainLooper());
+            final long defaultsStartNanos = mStartupProfile.beginPhase();
+            loadDefaultsIfNeeded();
+            mStartupProfile.endPhase("loadDefaults", defaultsStartNanos);
             migrateAllLegacySettingsIfNeeded();
         }
 
@@ -1310,39 +2477,293 @@ public class ArielSettingsProvider extends ContentProvider {
             return peekSettingsStateLocked(key);
         }
 
-        public void ensureSettingsForUserLocked(int userId) {
-            // Migrate the setting for this user if needed.
-            migrateLegacySettingsForUserIfNeededLocked(userId);
+        /**
+         * Loads and upgrades a single table, so a caller only pays for the
+         * tables it touches.
+         */
+        private void ensureSettingsLocked(int key) {
+            final int type = getTypeFromKey(key);
+            final int userId = getUserIdFromKey(key);
+            ArielSettingsTrace.begin("ensureSettings", getTableForType(type), userId);
+            try {
+                // Migrate the setting for this user if needed, all tables at once.
+                if (migrateLegacySettingsForUserIfNeededLocked(userId)) {
+                    // The migration loaded all tables, so upgrade them all.
+                    upgradeMigratedSettingsLocked(userId);
+                } else {
+                    ensureSettingsStateLocked(key);
+
+                    // Upgrade the table to the latest version.
+                    final long upgradeStartNanos = mStartupProfile.beginPhase();
+                    UpgradeController upgrader = new UpgradeController(userId);
+                    upgrader.upgradeIfNeededLocked(type);
+                    endStartupPhase("upgrade " + getTableForType(type), userId,
+                            upgradeStartNanos);
+                }
 
-            // Ensure global settings loaded if owner.
-            if (userId == UserHandle.USER_OWNER) {
-                final int globalKey = makeKey(SETTINGS_TYPE_GLOBAL, UserHandle.USER_OWNER);
-                ensureSettingsStateLocked(globalKey);
+                if (type == SETTINGS_TYPE_SECURE && userId == UserHandle.USER_OWNER) {
+                    mStartupProfile.finish(getContext());
+                }
+            } finally {
+                ArielSettingsTrace.end();
             }
+        }
 
-            // Ensure secure settings loaded.
-            final int secureKey = makeKey(SETTINGS_TYPE_SECURE, userId);
-            ensureSettingsStateLocked(secureKey);
+        private void ensureSettingsStateLocked(int key) {
+            if (mSettingsStates.get(key) == null) {
+                final long parseStartNanos = mStartupProfile.beginPhase();
+                final int type = getTypeFromKey(key);
+                final int maxBytesPerPackage = getMaxBytesPerPackageForType(type);
+                ArielSettingsState settingsState = new ArielSettingsState(mLock,
+                        getSettingsFile(key), key, maxBytesPerPackage, mDefaultsStates.get(type));
+                publishSettingsStateLocked(key, settingsState);
+                endStartupPhase("parse " + getTableForType(type), getUserIdFromKey(key),
+                        parseStartNanos);
+            }
+        }
 
-            // Make sure the secure settings have an Android id set.
-            ArielSettingsState secureSettings = getSettingsLocked(SETTINGS_TYPE_SECURE, userId);
-            ensureSecureSettingAndroidIdSetLocked(secureSettings);
+        private void publishSettingsStateLocked(int key, ArielSettingsState settingsState) {
+            mSettingsStates.put(key, settingsState);
+            mPublishCount++;
+            // Tracked even without idle eviction, as trimming memory evicts too.
+            mLastAccessMillis.put(key, SystemClock.uptimeMillis());
+            if (mIdleEvictionMillis > 0) {
+                scheduleIdleEvictionLocked();
+            }
+        }
 
-            // Ensure system settings loaded.
-            final int systemKey = makeKey(SETTINGS_TYPE_SYSTEM, userId);
-            ensureSettingsStateLocked(systemKey);
+        /**
+         * Asks the persistence thread to load the secure and system settings of
+         * a user about to be used, so the first reads do not load them under
+         * the lock.
+         */
+        public void prefetchSettingsForUserLocked(int userId) {
+            mBackgroundHandler.obtainMessage(BackgroundHandler.MSG_PREFETCH_USER_SETTINGS,
+                    userId, 0).sendToTarget();
+        }
 
-            // Upgrade the settings to the latest version.
-            UpgradeController upgrader = new UpgradeController(userId);
-            upgrader.upgradeIfNeededLocked();
+        // Runs on the persistence thread so the files are not written by async persistence.
+        private void doPrefetchSettingsForUser(int userId) {
+            // A user without files is migrated on first access.
+            if (!getSettingsFile(makeKey(SETTINGS_TYPE_SECURE, userId)).exists()) {
+                return;
+            }
+            ArielSettingsTrace.begin("prefetchSettingsForUser", userId);
+            try {
+                prefetchSettings(makeKey(SETTINGS_TYPE_SECURE, userId));
+                prefetchSettings(makeKey(SETTINGS_TYPE_SYSTEM, userId));
+            } finally {
+                ArielSettingsTrace.end();
+            }
         }
 
-        private void ensureSettingsStateLocked(int key) {
-            if (mSettingsStates.get(key) == null) {
-                final int maxBytesPerPackage = getMaxBytesPerPackageForType(getTypeFromKey(key));
-                ArielSettingsState settingsState = new ArielSettingsState(mLock, getSettingsFile(key), key,
-                        maxBytesPerPackage);
-                mSettingsStates.put(key, settingsState);
+        private void prefetchSettings(int key) {
+            final int type = getTypeFromKey(key);
+            final ArielSettingsState defaults;
+            final int publishCount;
+            long waitStartNanos = mLock.beginWait();
+            synchronized (mLock) {
+                try (ArielSettingsLock.Hold hold = mLock.acquired(ArielSettingsLock.SITE_USER_STATE,
+                        waitStartNanos)) {
+                    if (mSettingsStates.get(key) != null) {
+                        return;
+                    }
+                    defaults = mDefaultsStates.get(type);
+                    publishCount = mPublishCount;
+                }
+            }
+
+            // A backup means a write in progress or interrupted, leave restoring it to
+            // the first access.
+            final File settingsFile = getSettingsFile(key);
+            if (new File(settingsFile.getPath() + ".bak").exists()) {
+                return;
+            }
+
+            // Parse without the lock as the state is not visible to other threads yet.
+            // The file is only written once the table is loaded, in which case ours is
+            // dropped below, so a failed read is left to the first access too.
+            final ArielSettingsState settingsState;
+            try {
+                settingsState = new ArielSettingsState(mLock, settingsFile, key,
+                        getMaxBytesPerPackageForType(type), defaults, false);
+            } catch (IllegalStateException e) {
+                Slog.w(LOG_TAG, "Not prefetching settings being written: " + settingsFile, e);
+                return;
+            }
+
+            waitStartNanos = mLock.beginWait();
+            synchronized (mLock) {
+                try (ArielSettingsLock.Hold hold = mLock.acquired(ArielSettingsLock.SITE_USER_STATE,
+                        waitStartNanos)) {
+                    // An access loaded it meanwhile, and may have written it, drop ours.
+                    if (mSettingsStates.get(key) != null || mPublishCount != publishCount) {
+                        return;
+                    }
+                    publishSettingsStateLocked(key, settingsState);
+                    settingsState.onPublishedLocked();
+                    mEvictedKeys.delete(key);
+                    mPrefetchCount++;
+
+                    // Run the upgrade steps now rather than on first access.
+                    ensureSettingsLocked(key);
+                }
+            }
+        }
+
+        /**
+         * Asks the persistence thread to drop from memory the secure and system
+         * settings not accessed for the given time.
+         */
+        public void evictIdleSettingsLocked(long minIdleMillis) {
+            if (!mBackgroundHandler.hasMessages(BackgroundHandler.MSG_TRIM_MEMORY)) {
+                mBackgroundHandler.obtainMessage(BackgroundHandler.MSG_TRIM_MEMORY,
+                        minIdleMillis).sendToTarget();
+            }
+        }
+
+        private void scheduleIdleEvictionLocked() {
+            if (!mBackgroundHandler.hasMessages(BackgroundHandler.MSG_EVICT_IDLE_SETTINGS)) {
+                mBackgroundHandler.sendEmptyMessageDelayed(
+                        BackgroundHandler.MSG_EVICT_IDLE_SETTINGS, mIdleEvictionMillis);
+            }
+        }
+
+        // Runs on the persistence thread so no state is being written.
+        private void doEvictIdleSettings(long minIdleMillis) {
+            final long waitStartNanos = mLock.beginWait();
+            synchronized (mLock) {
+                try (ArielSettingsLock.Hold hold = mLock.acquired(ArielSettingsLock.SITE_USER_STATE,
+                        waitStartNanos)) {
+                    final long nowMillis = SystemClock.uptimeMillis();
+                    boolean keptEvictable = false;
+                    for (int i = mSettingsStates.size() - 1; i >= 0; i--) {
+                        final int key = mSettingsStates.keyAt(i);
+                        // We always keep the global settings in memory.
+                        if (isGlobalSettingsKey(key)) {
+                            continue;
+                        }
+                        ArielSettingsState settingsState = mSettingsStates.valueAt(i);
+                        // Evicted on a later pass once written.
+                        if (settingsState.hasPendingWriteLocked()
+                                || nowMillis - mLastAccessMillis.get(key, nowMillis)
+                                        < minIdleMillis) {
+                            keptEvictable = true;
+                            continue;
+                        }
+                        mSettingsStates.removeAt(i);
+                        mLastAccessMillis.delete(key);
+                        settingsState.destroyLocked(null);
+                        mEvictedKeys.put(key, true);
+                        mEvictionCount++;
+                    }
+                    if (keptEvictable && mIdleEvictionMillis > 0) {
+                        scheduleIdleEvictionLocked();
+                    }
+                }
+            }
+        }
+
+        public void dumpMemoryStatsLocked(PrintWriter pw) {
+            pw.append("SETTINGS MEMORY (idle eviction after ").print(mIdleEvictionMillis);
+            pw.println(" ms)");
+            pw.append("  resident:").print(mSettingsStates.size());
+            pw.append(" evicted:").print(mEvictedKeys.size());
+            pw.append(" evictions:").print(mEvictionCount);
+            pw.append(" prefetches:").print(mPrefetchCount);
+            pw.println();
+            mReloadTimes.dump(pw, "  reload");
+        }
+
+        public boolean hasSettingsForUserLocked(int userId) {
+            return mSettingsStates.get(makeKey(SETTINGS_TYPE_SECURE, userId)) != null;
+        }
+
+        private void endStartupPhase(String phase, int userId, long phaseStartNanos) {
+            if (phaseStartNanos != 0) {
+                mStartupProfile.endPhase(phase + " user " + userId, phaseStartNanos);
+            }
+        }
+
+        private void loadDefaultsIfNeeded() {
+            synchronized (mLock) {
+                if (mDefaultsStates.size() > 0) {
+                    return;
+                }
+
+                ArrayMap<String, String> globalDefaults = new ArrayMap<>();
+                ArrayMap<String, String> secureDefaults = new ArrayMap<>();
+                ArrayMap<String, String> systemDefaults = new ArrayMap<>();
+
+                Resources resources = getContext().getResources();
+                XmlResourceParser parser = resources.getXml(R.xml.ariel_settings_defaults);
+                try {
+                    XmlUtils.beginDocument(parser, TAG_DEFAULTS);
+                    while (true) {
+                        XmlUtils.nextElement(parser);
+                        if (parser.getEventType() != XmlPullParser.START_TAG) {
+                            break;
+                        }
+                        String name = parser.getAttributeValue(null, ATTR_DEFAULT_NAME);
+                        String value = getDefaultValue(resources, parser);
+                        if (!isKeyValid(name)) {
+                            continue;
+                        }
+                        switch (parser.getName()) {
+                            case TABLE_GLOBAL: {
+                                globalDefaults.put(name, value);
+                            } break;
+
+                            case TABLE_SECURE: {
+                                secureDefaults.put(name, value);
+                            } break;
+
+                            case TABLE_SYSTEM: {
+                                systemDefaults.put(name, value);
+                            } break;
+
+                            default: {
+                                Slog.w(LOG_TAG, "Unknown defaults table: " + parser.getName());
+                            } break;
+                        }
+                    }
+                } catch (XmlPullParserException | IOException e) {
+                    Slog.e(LOG_TAG, "Failed parsing settings defaults", e);
+                } finally {
+                    parser.close();
+                }
+
+                mDefaultsStates.put(SETTINGS_TYPE_GLOBAL, new ArielSettingsState(mLock,
+                        makeKey(SETTINGS_TYPE_GLOBAL, UserHandle.USER_OWNER), globalDefaults));
+                mDefaultsStates.put(SETTINGS_TYPE_SECURE, new ArielSettingsState(mLock,
+                        makeKey(SETTINGS_TYPE_SECURE, UserHandle.USER_OWNER), secureDefaults));
+                mDefaultsStates.put(SETTINGS_TYPE_SYSTEM, new ArielSettingsState(mLock,
+                        makeKey(SETTINGS_TYPE_SYSTEM, UserHandle.USER_OWNER), systemDefaults));
+            }
+        }
+
+        private String getDefaultValue(Resources resources, XmlResourceParser parser) {
+            final int resId = parser.getAttributeResourceValue(null, ATTR_DEFAULT_VALUE, 0);
+            if (resId == 0) {
+                return parser.getAttributeValue(null, ATTR_DEFAULT_VALUE);
+            }
+            TypedValue typedValue = new TypedValue();
+            resources.getValue(resId, typedValue, true);
+            switch (typedValue.type) {
+                case TypedValue.TYPE_INT_BOOLEAN: {
+                    // Booleans are stored as "1"/"0" like the legacy database did.
+                    return (typedValue.data != 0) ? "1" : "0";
+                }
+
+                case TypedValue.TYPE_INT_DEC:
+                case TypedValue.TYPE_INT_HEX: {
+                    return Integer.toString(typedValue.data);
+                }
+
+                default: {
+                    CharSequence value = typedValue.coerceToString();
+                    return (value != null) ? value.toString() : null;
+                }
             }
         }
 
@@ -1351,6 +2772,8 @@ public class ArielSettingsProvider extends ContentProvider {
 
             // Nuke system settings.
             final int systemKey = makeKey(SETTINGS_TYPE_SYSTEM, userId);
+            mLastAccessMillis.delete(systemKey);
+            mEvictedKeys.delete(systemKey);
             final ArielSettingsState systemSettingsState = mSettingsStates.get(systemKey);
             if (systemSettingsState != null) {
                 if (permanently) {
@@ -1368,6 +2791,8 @@ public class ArielSettingsProvider extends ContentProvider {
 
             // Nuke secure settings.
             final int secureKey = makeKey(SETTINGS_TYPE_SECURE, userId);
+            mLastAccessMillis.delete(secureKey);
+            mEvictedKeys.delete(secureKey);
             final ArielSettingsState secureSettingsState = mSettingsStates.get(secureKey);
             if (secureSettingsState != null) {
                 if (permanently) {
@@ -1443,96 +2868,296 @@ public class ArielSettingsProvider extends ContentProvider {
             }
         }
 
+        public List<ArielSettingsSnapshot.Table> exportSnapshotLocked(int userId, int[] types) {
+            ArrayList<ArielSettingsSnapshot.Table> tables = new ArrayList<>(types.length);
+            for (int type : types) {
+                // Global settings are shared and live under the owner.
+                final int owningUserId = (type == SETTINGS_TYPE_GLOBAL)
+                        ? UserHandle.USER_OWNER : userId;
+                ArielSettingsState settingsState = getSettingsLocked(type, owningUserId);
+                ArielSettingsSnapshot.Table table = new ArielSettingsSnapshot.Table(
+                        getTableForType(type), settingsState.getVersionLocked(),
+                        settingsState.getGenerationLocked());
+                List<String> names = settingsState.getSettingNamesLocked();
+                final int nameCount = names.size();
+                for (int i = 0; i < nameCount; i++) {
+                    Setting setting = settingsState.getSettingLocked(names.get(i));
+                    table.add(setting.getName(), setting.getValue(), setting.getPackageName(),
+                            setting.getId());
+                }
+                tables.add(table);
+            }
+            return tables;
+        }
+
+        public void importSnapshotLocked(int userId, List<ArielSettingsSnapshot.Table> tables,
+                String packageName) {
+            final int tableCount = tables.size();
+            // Check every table first, so a failure leaves all of them untouched.
+            for (int i = 0; i < tableCount; i++) {
+                ArielSettingsSnapshot.Table table = tables.get(i);
+                final int type = getSettingsTypeForTable(table.table);
+                final int owningUserId = (type == SETTINGS_TYPE_GLOBAL)
+                        ? UserHandle.USER_OWNER : userId;
+                ArielSettingsState settingsState = peekSettingsStateLocked(
+                        makeKey(type, owningUserId));
+                settingsState.enforceMemoryUsageForBatchLocked(table.names, table.values,
+                        packageName);
+            }
+            for (int i = 0; i < tableCount; i++) {
+                ArielSettingsSnapshot.Table table = tables.get(i);
+                applyBatchLocked(getSettingsTypeForTable(table.table), userId, table.names,
+                        table.values, packageName);
+            }
+        }
+
+        /**
+         * Inserts a batch of settings into one table with one change
+         * notification for the whole table.
+         *
+         * @return The number of settings that changed.
+         */
+        public int applyBatchLocked(int type, int userId, List<String> names,
+                List<String> values, String packageName) {
+            final int owningUserId = (type == SETTINGS_TYPE_GLOBAL)
+                    ? UserHandle.USER_OWNER : userId;
+            final int key = makeKey(type, owningUserId);
+            ArielSettingsState settingsState = peekSettingsStateLocked(key);
+
+            // Fail before changing anything, so the table never has half the batch.
+            settingsState.enforceMemoryUsageForBatchLocked(names, values, packageName);
+
+            int changedCount = 0;
+            final int settingCount = names.size();
+            for (int i = 0; i < settingCount; i++) {
+                if (settingsState.insertSettingLocked(names.get(i), values.get(i),
+                        packageName)) {
+                    changedCount++;
+                }
+            }
+
+            // Persisted by the scheduled write, not synchronously under the lock.
+            if (changedCount > 0) {
+                notifyForSettingsChange(key, null);
+            }
+            return changedCount;
+        }
+
+        public Bundle getBackupChangesLocked(int type, int userId) {
+            final int owningUserId = (type == SETTINGS_TYPE_GLOBAL)
+                    ? UserHandle.USER_OWNER : userId;
+            ArielSettingsState settingsState = getSettingsLocked(type, owningUserId);
+
+            ArrayList<String> names = new ArrayList<>();
+            ArrayList<String> deleted = new ArrayList<>();
+            settingsState.getChangesSinceLocked(settingsState.getBackupGenerationLocked(),
+                    names, deleted);
+
+            final int nameCount = names.size();
+            ArrayList<String> values = new ArrayList<>(nameCount);
+            for (int i = 0; i < nameCount; i++) {
+                Setting setting = settingsState.getSettingLocked(names.get(i));
+                values.add(setting.getValue());
+            }
+
+            Bundle result = new Bundle();
+            result.putLong(BACKUP_KEY_GENERATION, settingsState.getGenerationLocked());
+            result.putStringArrayList(BACKUP_KEY_NAMES, names);
+            result.putStringArrayList(BACKUP_KEY_VALUES, values);
+            result.putStringArrayList(BACKUP_KEY_DELETED, deleted);
+            return result;
+        }
+
+        public void commitBackupLocked(int type, int userId, long generation) {
+            final int owningUserId = (type == SETTINGS_TYPE_GLOBAL)
+                    ? UserHandle.USER_OWNER : userId;
+            ArielSettingsState settingsState = getSettingsLocked(type, owningUserId);
+            if (generation > settingsState.getGenerationLocked()) {
+                throw new IllegalArgumentException("Backup generation from the future: "
+                        + generation);
+            }
+            settingsState.setBackupGenerationLocked(generation);
+        }
+
+        public void dumpPersistenceStatsLocked(PrintWriter pw) {
+            pw.println("PERSISTENCE STATS");
+            final int stateCount = mSettingsStates.size();
+            for (int i = 0; i < stateCount; i++) {
+                final int key = mSettingsStates.keyAt(i);
+                mSettingsStates.valueAt(i).dumpPersistenceStats(pw, "  "
+                        + getTableForType(getTypeFromKey(key)) + " user " + getUserIdFromKey(key));
+            }
+        }
+
+        public void resetStatsLocked() {
+            final int stateCount = mSettingsStates.size();
+            for (int i = 0; i < stateCount; i++) {
+                mSettingsStates.valueAt(i).resetPersistenceStats();
+            }
+            mEvictionCount = 0;
+            mPrefetchCount = 0;
+            mReloadTimes.reset();
+        }
+
+        public void writePersistenceStatsToBundleLocked(Bundle bundle) {
+            final int stateCount = mSettingsStates.size();
+            for (int i = 0; i < stateCount; i++) {
+                final int key = mSettingsStates.keyAt(i);
+                mSettingsStates.valueAt(i).writePersistenceStatsToBundle(bundle, "persist."
+                        + getTableForType(getTypeFromKey(key)) + "." + getUserIdFromKey(key));
+            }
+        }
+
+        private String getTableForType(int type) {
+            switch (type) {
+                case SETTINGS_TYPE_GLOBAL: {
+                    return TABLE_GLOBAL;
+                }
+
+                case SETTINGS_TYPE_SECURE: {
+                    return TABLE_SECURE;
+                }
+
+                case SETTINGS_TYPE_SYSTEM: {
+                    return TABLE_SYSTEM;
+                }
+
+                default: {
+                    throw new IllegalArgumentException("Invalid settings type:" + type);
+                }
+            }
+        }
+
         private ArielSettingsState peekSettingsStateLocked(int key) {
             ArielSettingsState settingsState = mSettingsStates.get(key);
             if (settingsState != null) {
+                mLastAccessMillis.put(key, SystemClock.uptimeMillis());
                 return settingsState;
             }
 
-            ensureSettingsForUserLocked(getUserIdFromKey(key));
+            final boolean reload = mEvictedKeys.get(key);
+            final long reloadStartNanos = reload ? SystemClock.elapsedRealtimeNanos() : 0;
+            ensureSettingsLocked(key);
+            if (reload) {
+                mEvictedKeys.delete(key);
+                mReloadTimes.record(SystemClock.elapsedRealtimeNanos() - reloadStartNanos);
+            }
             return mSettingsStates.get(key);
         }
 
         private void migrateAllLegacySettingsIfNeeded() {
-            synchronized (mLock) {
-                final int key = makeKey(SETTINGS_TYPE_GLOBAL, UserHandle.USER_OWNER);
-                File globalFile = getSettingsFile(key);
-                if (globalFile.exists()) {
-                    return;
-                }
+            ArielSettingsTrace.begin("migrateAllLegacySettings");
+            try {
+                synchronized (mLock) {
+                    final int key = makeKey(SETTINGS_TYPE_GLOBAL, UserHandle.USER_OWNER);
+                    File globalFile = getSettingsFile(key);
+                    if (globalFile.exists()) {
+                        return;
+                    }
 
-                final long identity = Binder.clearCallingIdentity();
-                try {
-                    List<UserInfo> users = mUserManager.getUsers(true);
+                    final long identity = Binder.clearCallingIdentity();
+                    try {
+                        List<UserInfo> users = mUserManager.getUsers(true);
 
-                    final int userCount = users.size();
-                    for (int i = 0; i < userCount; i++) {
-                        final int userId = users.get(i).id;
+                        final int userCount = users.size();
+                        for (int i = 0; i < userCount; i++) {
+                            final int userId = users.get(i).id;
 
-                        DatabaseHelper dbHelper = new DatabaseHelper(getContext(), userId);
-                        SQLiteDatabase database = dbHelper.getWritableDatabase();
-                        migrateLegacySettingsForUserLocked(dbHelper, database, userId);
+                            final long openStartNanos = mStartupProfile.beginPhase();
+                            DatabaseHelper dbHelper = new DatabaseHelper(getContext(), userId);
+                            SQLiteDatabase database = dbHelper.getWritableDatabase();
+                            endStartupPhase("openDatabase", userId, openStartNanos);
+
+                            final long migrateStartNanos = mStartupProfile.beginPhase();
+                            migrateLegacySettingsForUserLocked(dbHelper, database, userId);
+                            endStartupPhase("migrate", userId, migrateStartNanos);
 
-                        // Upgrade to the latest version.
-                        UpgradeController upgrader = new UpgradeController(userId);
-                        upgrader.upgradeIfNeededLocked();
+                            upgradeMigratedSettingsLocked(userId);
 
-                        // Drop from memory if not a running user.
-                        if (!mUserManager.isUserRunning(new UserHandle(userId))) {
-                            removeUserStateLocked(userId, false);
+                            // Drop from memory if not a running user.
+                            if (!mUserManager.isUserRunning(new UserHandle(userId))) {
+                                removeUserStateLocked(userId, false);
+                            }
                         }
+                    } finally {
+                        Binder.restoreCallingIdentity(identity);
                     }
-                } finally {
-                    Binder.restoreCallingIdentity(identity);
                 }
+            } finally {
+                ArielSettingsTrace.end();
             }
         }
 
-        private void migrateLegacySettingsForUserIfNeededLocked(int userId) {
+        /**
+         * @return Whether the settings were migrated, which loads all tables
+         * of the user.
+         */
+        private boolean migrateLegacySettingsForUserIfNeededLocked(int userId) {
             // Every user has secure settings and if no file we need to migrate.
             final int secureKey = makeKey(SETTINGS_TYPE_SECURE, userId);
             File secureFile = getSettingsFile(secureKey);
             if (secureFile.exists()) {
-                return;
+                return false;
             }
 
+            final long openStartNanos = mStartupProfile.beginPhase();
             DatabaseHelper dbHelper = new DatabaseHelper(getContext(), userId);
             SQLiteDatabase database = dbHelper.getWritableDatabase();
+            endStartupPhase("openDatabase", userId, openStartNanos);
 
+            final long migrateStartNanos = mStartupProfile.beginPhase();
             migrateLegacySettingsForUserLocked(dbHelper, database, userId);
+            endStartupPhase("migrate", userId, migrateStartNanos);
+            return true;
         }
 
-        private void migrateLegacySettingsForUserLocked(DatabaseHelper dbHelper,
-                SQLiteDatabase database, int userId) {
-            // Move over the global settings if owner.
+        // Upgrades to the latest version all the tables a migration loaded.
+        private void upgradeMigratedSettingsLocked(int userId) {
+            final long upgradeStartNanos = mStartupProfile.beginPhase();
+            UpgradeController upgrader = new UpgradeController(userId);
             if (userId == UserHandle.USER_OWNER) {
-                final int globalKey = makeKey(SETTINGS_TYPE_GLOBAL, userId);
-                ensureSettingsStateLocked(globalKey);
-                ArielSettingsState globalSettings = mSettingsStates.get(globalKey);
-                migrateLegacySettingsLocked(globalSettings, database, TABLE_GLOBAL);
-                globalSettings.persistSyncLocked();
+                upgrader.upgradeIfNeededLocked(SETTINGS_TYPE_GLOBAL);
             }
+            upgrader.upgradeIfNeededLocked(SETTINGS_TYPE_SECURE);
+            upgrader.upgradeIfNeededLocked(SETTINGS_TYPE_SYSTEM);
+            endStartupPhase("upgrade", userId, upgradeStartNanos);
+        }
 
-            // Move over the secure settings.
-            final int secureKey = makeKey(SETTINGS_TYPE_SECURE, userId);
-            ensureSettingsStateLocked(secureKey);
-            ArielSettingsState secureSettings = mSettingsStates.get(secureKey);
-            migrateLegacySettingsLocked(secureSettings, database, TABLE_SECURE);
-            ensureSecureSettingAndroidIdSetLocked(secureSettings);
-            secureSettings.persistSyncLocked();
-
-            // Move over the system settings.
-            final int systemKey = makeKey(SETTINGS_TYPE_SYSTEM, userId);
-            ensureSettingsStateLocked(systemKey);
-            ArielSettingsState systemSettings = mSettingsStates.get(systemKey);
-            migrateLegacySettingsLocked(systemSettings, database, TABLE_SYSTEM);
-            systemSettings.persistSyncLocked();
+        private void migrateLegacySettingsForUserLocked(DatabaseHelper dbHelper,
+                SQLiteDatabase database, int userId) {
+            ArielSettingsTrace.begin("migrateLegacySettingsForUser", userId);
+            try {
+                // Move over the global settings if owner.
+                if (userId == UserHandle.USER_OWNER) {
+                    final int globalKey = makeKey(SETTINGS_TYPE_GLOBAL, userId);
+                    ensureSettingsStateLocked(globalKey);
+                    ArielSettingsState globalSettings = mSettingsStates.get(globalKey);
+                    migrateLegacySettingsLocked(globalSettings, database, TABLE_GLOBAL);
+                    globalSettings.persistSyncLocked();
+                }
 
-            // Drop the database as now all is moved and persisted.
-            if (DROP_DATABASE_ON_MIGRATION) {
-                dbHelper.dropDatabase();
-            } else {
-                dbHelper.backupDatabase();
+                // Move over the secure settings.
+                final int secureKey = makeKey(SETTINGS_TYPE_SECURE, userId);
+                ensureSettingsStateLocked(secureKey);
+                ArielSettingsState secureSettings = mSettingsStates.get(secureKey);
+                migrateLegacySettingsLocked(secureSettings, database, TABLE_SECURE);
+                secureSettings.persistSyncLocked();
+
+                // Move over the system settings.
+                final int systemKey = makeKey(SETTINGS_TYPE_SYSTEM, userId);
+                ensureSettingsStateLocked(systemKey);
+                ArielSettingsState systemSettings = mSettingsStates.get(systemKey);
+                migrateLegacySettingsLocked(systemSettings, database, TABLE_SYSTEM);
+                systemSettings.persistSyncLocked();
+
+                // Drop the database as now all is moved and persisted.
+                if (DROP_DATABASE_ON_MIGRATION) {
+                    dbHelper.dropDatabase();
+                } else {
+                    dbHelper.backupDatabase();
+                }
+            } finally {
+                ArielSettingsTrace.end();
             }
         }
 
@@ -1570,24 +3195,6 @@ public class ArielSettingsProvider extends ContentProvider {
             }
         }
 
-        private void ensureSecureSettingAndroidIdSetLocked(ArielSettingsState secureSettings) {
-
-            final int userId = getUserIdFromKey(secureSettings.mKey);
-
-            final UserInfo user;
-            final long identity = Binder.clearCallingIdentity();
-            try {
-                user = mUserManager.getUserInfo(userId);
-            } finally {
-                Binder.restoreCallingIdentity(identity);
-            }
-            if (user == null) {
-                // Can happen due to races when deleting users - treat as benign.
-                return;
-            }
-
-        }
-
         private void notifyForSettingsChange(int key, String name) {
             // Update the system property *first*, so if someone is listening for
             // a notification and then using the contract class to get their data,
@@ -1614,9 +3221,12 @@ public class ArielSettingsProvider extends ContentProvider {
                 }
             }
 
-            // Inform the backup manager about a data change
-            if (backedUpDataChanged) {
-                mHandler.obtainMessage(MyHandler.MSG_NOTIFY_DATA_CHANGED).sendToTarget();
+            // Inform the backup manager about a data change, once per burst of writes.
+            if (backedUpDataChanged
+                    && !mHandler.hasMessages(MyHandler.MSG_NOTIFY_DATA_CHANGED)) {
+                ArielSettingsTrace.asyncBegin(ArielSettingsTrace.ASYNC_BACKUP_NOTIFY, 0);
+                mHandler.sendEmptyMessageDelayed(MyHandler.MSG_NOTIFY_DATA_CHANGED,
+                        DATA_CHANGED_COALESCE_DELAY_MILLIS);
             }
 
             // Now send the notification through the content framework.
@@ -1734,19 +3344,55 @@ public class ArielSettingsProvider extends ContentProvider {
                     case MSG_NOTIFY_URI_CHANGED: {
                         final int userId = msg.arg1;
                         Uri uri = (Uri) msg.obj;
-                        getContext().getContentResolver().notifyChange(uri, null, true, userId);
+                        ArielSettingsTrace.begin("notifyChange", userId);
+                        try {
+                            getContext().getContentResolver().notifyChange(uri, null, true,
+                                    userId);
+                        } finally {
+                            ArielSettingsTrace.end();
+                        }
                         if (DEBUG) {
                             Slog.v(LOG_TAG, "Notifying for " + userId + ": " + uri);
                         }
                     } break;
 
                     case MSG_NOTIFY_DATA_CHANGED: {
+                        ArielSettingsTrace.asyncEnd(ArielSettingsTrace.ASYNC_BACKUP_NOTIFY, 0);
                         mBackupManager.dataChanged();
                     } break;
                 }
             }
         }
 
+        private final class BackgroundHandler extends Handler {
+            private static final int MSG_EVICT_IDLE_SETTINGS = 1;
+            private static final int MSG_TRIM_MEMORY = 2;
+            private static final int MSG_PREFETCH_USER_SETTINGS = 3;
+
+            public BackgroundHandler() {
+                // The looper writing the states, so none is written while evicting
+                // or prefetching.
+                super(BackgroundThread.getHandler().getLooper());
+            }
+
+            @Override
+            public void handleMessage(Message msg) {
+                switch (msg.what) {
+                    case MSG_EVICT_IDLE_SETTINGS: {
+                        doEvictIdleSettings(mIdleEvictionMillis);
+                    } break;
+
+                    case MSG_TRIM_MEMORY: {
+                        doEvictIdleSettings((Long) msg.obj);
+                    } break;
+
+                    case MSG_PREFETCH_USER_SETTINGS: {
+                        doPrefetchSettingsForUser(msg.arg1);
+                    } break;
+                }
+            }
+        }
+
         private final class UpgradeController {
             private static final int SETTINGS_VERSION = 1;
 
@@ -1756,54 +3402,61 @@ public class ArielSettingsProvider extends ContentProvider {
                 mUserId = userId;
             }
 
-            public void upgradeIfNeededLocked() {
-                // The version of all settings for a user is the same (all users have secure).
-                ArielSettingsState secureSettings = getSettingsLocked(
-                        SettingsRegistry.SETTINGS_TYPE_SECURE, mUserId);
-
-                // Try an update from the current state.
-                final int oldVersion = secureSettings.getVersionLocked();
-                final int newVersion = SETTINGS_VERSION;
+            /**
+             * Upgrades a loaded table. Every table keeps its own version, so
+             * the tables of a user are upgraded as they are loaded.
+             */
+            public void upgradeIfNeededLocked(int type) {
+                ArielSettingsTrace.begin("upgrade", getTableForType(type), mUserId);
+                try {
+                    final int key = makeKey(type, mUserId);
+                    ArielSettingsState settings = mSettingsStates.get(key);
 
-                // If up do date - done.
-                if (oldVersion == newVersion) {
-                    return;
-                }
+                    // Try an update from the current state.
+                    final int oldVersion = settings.getVersionLocked();
+                    final int newVersion = SETTINGS_VERSION;
 
-                // Try to upgrade.
-                final int curVersion = onUpgradeLocked(mUserId, oldVersion, newVersion);
+                    // If up do date - done.
+                    if (oldVersion == newVersion) {
+                        return;
+                    }
 
-                // If upgrade failed start from scratch and upgrade.
-                if (curVersion != newVersion) {
-                    // Drop state we have for this user.
-                    removeUserStateLocked(mUserId, true);
+                    // Try to upgrade.
+                    final int curVersion = onUpgradeLocked(type, mUserId, oldVersion, newVersion);
 
-                    // Recreate the database.
-                    DatabaseHelper dbHelper = new DatabaseHelper(getContext(), mUserId);
-                    SQLiteDatabase database = dbHelper.getWritableDatabase();
-                    dbHelper.recreateDatabase(database, newVersion, curVersion, oldVersion);
+                    // If upgrade failed start from scratch and upgrade.
+                    if (curVersion != newVersion) {
+                        // Drop state we have for this table.
+                        mSettingsStates.remove(key);
+                        settings.destroyLocked(null);
 
-                    // Migrate the settings for this user.
-                    migrateLegacySettingsForUserLocked(dbHelper, database, mUserId);
+                        // Recreate the database.
+                        DatabaseHelper dbHelper = new DatabaseHelper(getContext(), mUserId);
+                        SQLiteDatabase database = dbHelper.getWritableDatabase();
+                        dbHelper.recreateDatabase(database, newVersion, curVersion, oldVersion);
+
+                        // Migrate the settings of this table.
+                        ensureSettingsStateLocked(key);
+                        settings = mSettingsStates.get(key);
+                        migrateLegacySettingsLocked(settings, database, getTableForType(type));
+                        settings.persistSyncLocked();
+
+                        // Drop the database as now the table is moved and persisted.
+                        if (DROP_DATABASE_ON_MIGRATION) {
+                            dbHelper.dropDatabase();
+                        } else {
+                            dbHelper.backupDatabase();
+                        }
 
-                    // Now upgrade should work fine.
-                    onUpgradeLocked(mUserId, oldVersion, newVersion);
-                }
+                        // Now upgrade should work fine.
+                        onUpgradeLocked(type, mUserId, oldVersion, newVersion);
+                    }
 
-                // Set the global settings version if owner.
-                if (mUserId == UserHandle.USER_OWNER) {
-                    ArielSettingsState globalSettings = getSettingsLocked(
-                            SettingsRegistry.SETTINGS_TYPE_GLOBAL, mUserId);
-                    globalSettings.setVersionLocked(newVersion);
+                    // Set the table version.
+                    settings.setVersionLocked(newVersion);
+                } finally {
+                    ArielSettingsTrace.end();
                 }
-
-                // Set the secure settings version.
-                secureSettings.setVersionLocked(newVersion);
-
-                // Set the system settings version.
-                ArielSettingsState systemSettings = getSettingsLocked(
-                        SettingsRegistry.SETTINGS_TYPE_SYSTEM, mUserId);
-                systemSettings.setVersionLocked(newVersion);
             }
 
             private ArielSettingsState getGlobalSettingsLocked() {
@@ -1820,14 +3473,18 @@ public class ArielSettingsProvider extends ContentProvider {
 
             /**
              * You must perform all necessary mutations to bring the settings
-             * for this user from the old to the new version. When you add a new
-             * upgrade step you *must* update SETTINGS_VERSION.
+             * of the given table for this user from the old to the new version.
+             * When you add a new upgrade step you *must* update SETTINGS_VERSION.
+             *
+             * Tables are upgraded independently as they are loaded, so a step
+             * moving settings between tables belongs to the source table. The
+             * destination table is loaded and upgraded when fetched.
              *
              * This is an example of moving a setting from secure to global.
              *
              * // v119: Example settings changes.
              * if (currentVersion == 118) {
-             *     if (userId == UserHandle.USER_OWNER) {
+             *     if (type == SETTINGS_TYPE_SECURE && userId == UserHandle.USER_OWNER) {
              *         // Remove from the secure settings.
              *         SettingsState secureSettings = getSecureSettingsLocked(userId);
              *         String name = "example_setting_to_move";
@@ -1843,10 +3500,11 @@ public class ArielSettingsProvider extends ContentProvider {
              *     currentVersion = 119;
              * }
              */
-            private int onUpgradeLocked(int userId, int oldVersion, int newVersion) {
+            private int onUpgradeLocked(int type, int userId, int oldVersion, int newVersion) {
                 if (DEBUG) {
-                    Slog.w(LOG_TAG, "Upgrading settings for user: " + userId + " from version: "
-                            + oldVersion + " to version: " + newVersion);
+                    Slog.w(LOG_TAG, "Upgrading " + getTableForType(type) + " settings for user: "
+                            + userId + " from version: " + oldVersion + " to version: "
+                            + newVersion);
                 }
 
                 int currentVersion = oldVersion;
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.arielsettings;
+
+import android.os.SystemClock;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.io.PrintWriter;
+
+/**
+ * Token bucket limiting the rate of setting writes per calling uid.
+ * <p>
+ * Each uid may write a burst of up to the bucket capacity, after which it gets
+ * a token per refill interval. A write finding no token is rejected. The
+ * number of allowed and rejected writes is kept per uid for dumping.
+ * </p>
+ */
+final class ArielSettingsRateLimiter {
+    // Bound on the number of tracked uids, idle full buckets are dropped first.
+    private static final int MAX_TRACKED_UIDS = 256;
+
+    private static final class Bucket {
+        String packageName;
+        long tokens;
+        long lastRefillMillis;
+        long allowedCount;
+        long rejectedCount;
+    }
+
+    private final long mCapacity;
+    private final long mRefillIntervalMillis;
+
+    private final Object mLock = new Object();
+
+    @GuardedBy("mLock")
+    private final SparseArray<Bucket> mBuckets = new SparseArray<>();
+
+    @GuardedBy("mLock")
+    private long mRejectedCount;
+
+    public ArielSettingsRateLimiter(long capacity, long refillIntervalMillis) {
+        mCapacity = capacity;
+        mRefillIntervalMillis = refillIntervalMillis;
+    }
+
+    /**
+     * @return Whether the uid may write now, in which case a token is taken.
+     */
+    public boolean tryAcquire(int uid, String packageName) {
+        final long nowMillis = SystemClock.elapsedRealtime();
+        synchronized (mLock) {
+            Bucket bucket = mBuckets.get(uid);
+            if (bucket == null) {
+                if (mBuckets.size() >= MAX_TRACKED_UIDS) {
+                    trimLocked(nowMillis);
+                }
+                bucket = new Bucket();
+                bucket.tokens = mCapacity;
+                bucket.lastRefillMillis = nowMillis;
+                mBuckets.put(uid, bucket);
+            }
+            bucket.packageName = packageName;
+            refillLocked(bucket, nowMillis);
+
+            if (bucket.tokens > 0) {
+                bucket.tokens--;
+                bucket.allowedCount++;
+                return true;
+            }
+            bucket.rejectedCount++;
+            mRejectedCount++;
+            return false;
+        }
+    }
+
+    /**
+     * Clears the allowed and rejected write counts, the tokens are kept.
+     */
+    public void resetCounts() {
+        synchronized (mLock) {
+            mRejectedCount = 0;
+            final int bucketCount = mBuckets.size();
+            for (int i = 0; i < bucketCount; i++) {
+                Bucket bucket = mBuckets.valueAt(i);
+                bucket.allowedCount = 0;
+                bucket.rejectedCount = 0;
+            }
+        }
+    }
+
+    public void dump(PrintWriter pw) {
+        synchronized (mLock) {
+            pw.append("WRITE RATE LIMIT (capacity ").print(mCapacity);
+            pw.append(", refill every ").print(mRefillIntervalMillis);
+            pw.append(" ms, rejected ").print(mRejectedCount);
+            pw.println(")");
+            final int bucketCount = mBuckets.size();
+            for (int i = 0; i < bucketCount; i++) {
+                Bucket bucket = mBuckets.valueAt(i);
+                if (bucket.rejectedCount == 0) {
+                    continue;
+                }
+                pw.append("  uid:").print(mBuckets.keyAt(i));
+                pw.append(" package:").append(String.valueOf(bucket.packageName));
+                pw.append(" allowed:").print(bucket.allowedCount);
+                pw.append(" rejected:").print(bucket.rejectedCount);
+                pw.println();
+            }
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void refillLocked(Bucket bucket, long nowMillis) {
+        final long elapsedMillis = nowMillis - bucket.lastRefillMillis;
+        final long newTokens = elapsedMillis / mRefillIntervalMillis;
+        if (newTokens <= 0) {
+            return;
+        }
+        bucket.tokens = Math.min(mCapacity, bucket.tokens + newTokens);
+        bucket.lastRefillMillis += newTokens * mRefillIntervalMillis;
+    }
+
+    @GuardedBy("mLock")
+    private void trimLocked(long nowMillis) {
+        // A full bucket behaves as a new one, so only its counters are lost.
+        for (int i = mBuckets.size() - 1; i >= 0; i--) {
+            Bucket bucket = mBuckets.valueAt(i);
+            refillLocked(bucket, nowMillis);
+            if (bucket.tokens >= mCapacity) {
+                mBuckets.removeAt(i);
+            }
+        }
+        if (mBuckets.size() >= MAX_TRACKED_UIDS) {
+            // Every tracked uid is writing, drop one to stay bounded.
+            mBuckets.removeAt(0);
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.arielsettings;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact binary snapshot of one or more settings tables of a user, used to
+ * export and import whole tables through a single file descriptor.
+ * <p>
+ * Format, big endian:
+ * <pre>
+ * int magic, int format version, int table count, then per table:
+ *   string table, int settings version, long generation, int setting count,
+ *   then per setting: string name, string value, string package, long id
+ * </pre>
+ * A string is its length in chars, or -1 for null, followed by its UTF-16BE
+ * chars so that values round trip as-is.
+ * </p>
+ */
+final class ArielSettingsSnapshot {
+    private static final int MAGIC = 0x4153534e; // "ASSN"
+    private static final int FORMAT_VERSION = 1;
+
+    // Bounds to reject corrupt input before allocating for it.
+    private static final int MAX_TABLE_COUNT = 16;
+    private static final int MAX_SETTING_COUNT = 16 * 1024;
+    private static final int MAX_STRING_LENGTH = 4 * 1024 * 1024;
+
+    /** The settings of one table. */
+    static final class Table {
+        public final String table;
+        public final int version;
+        public final long generation;
+        public final ArrayList<String> names = new ArrayList<>();
+        public final ArrayList<String> values = new ArrayList<>();
+        public final ArrayList<String> packageNames = new ArrayList<>();
+        public final ArrayList<Long> ids = new ArrayList<>();
+
+        public Table(String table, int version, long generation) {
+            this.table = table;
+            this.version = version;
+            this.generation = generation;
+        }
+
+        public int size() {
+            return names.size();
+        }
+
+        public void add(String name, String value, String packageName, long id) {
+            names.add(name);
+            values.add(value);
+            packageNames.add(packageName);
+            ids.add(id);
+        }
+    }
+
+    private ArielSettingsSnapshot() {
+        /* do nothing */
+    }
+
+    public static void write(DataOutputStream out, List<Table> tables) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        final int tableCount = tables.size();
+        out.writeInt(tableCount);
+        for (int i = 0; i < tableCount; i++) {
+            Table table = tables.get(i);
+            writeString(out, table.table);
+            out.writeInt(table.version);
+            out.writeLong(table.generation);
+            final int settingCount = table.size();
+            out.writeInt(settingCount);
+            for (int j = 0; j < settingCount; j++) {
+                writeString(out, table.names.get(j));
+                writeString(out, table.values.get(j));
+                writeString(out, table.packageNames.get(j));
+                out.writeLong(table.ids.get(j));
+            }
+        }
+        out.flush();
+    }
+
+    public static List<Table> read(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a settings snapshot");
+        }
+        final int formatVersion = in.readInt();
+        if (formatVersion != FORMAT_VERSION) {
+            throw new IOException("Unsupported snapshot format: " + formatVersion);
+        }
+        final int tableCount = in.readInt();
+        if (tableCount < 0 || tableCount > MAX_TABLE_COUNT) {
+            throw new IOException("Bad table count: " + tableCount);
+        }
+        ArrayList<Table> tables = new ArrayList<>(tableCount);
+        // Bounds the settings of all tables together.
+        int settingTotal = 0;
+        for (int i = 0; i < tableCount; i++) {
+            Table table = new Table(readString(in), in.readInt(), in.readLong());
+            final int settingCount = in.readInt();
+            if (settingCount < 0 || settingCount > MAX_SETTING_COUNT - settingTotal) {
+                throw new IOException("Bad setting count: " + settingCount);
+            }
+            settingTotal += settingCount;
+            for (int j = 0; j < settingCount; j++) {
+                table.add(readString(in), readString(in), readString(in), in.readLong());
+            }
+            tables.add(table);
+        }
+        return tables;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(s.length());
+        out.writeChars(s);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length == -1) {
+            return null;
+        }
+        if (length < 0 || length > MAX_STRING_LENGTH) {
+            throw new IOException("Bad string length: " + length);
+        }
+        final char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = in.readChar();
+        }
+        return new String(chars);
+    }
+}
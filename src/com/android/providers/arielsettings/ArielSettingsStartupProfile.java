@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.arielsettings;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.DropBoxManager;
+import android.os.SystemClock;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.os.BackgroundThread;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+/**
+ * Breakdown of the time the provider spends starting up, i.e. from its
+ * creation until the settings of the owner are loaded, by phase such as
+ * opening a legacy database, migrating or parsing the settings of a user
+ * and upgrading them.
+ * <p>
+ * Phases are recorded until the profile is finished, after which recording
+ * is a no-op. The finished profile is written to the drop box once per boot.
+ * </p>
+ */
+final class ArielSettingsStartupProfile {
+    static final String DROPBOX_TAG = "ariel_settings_startup";
+
+    private static final Object sReportLock = new Object();
+
+    // The provider is created once per boot, but do not trust that.
+    @GuardedBy("sReportLock")
+    private static boolean sReportedThisBoot;
+
+    private final Object mLock = new Object();
+
+    @GuardedBy("mLock")
+    private final ArrayList<String> mPhaseNames = new ArrayList<>();
+
+    @GuardedBy("mLock")
+    private final ArrayList<Long> mPhaseDurationsNanos = new ArrayList<>();
+
+    @GuardedBy("mLock")
+    private final long mStartNanos = SystemClock.elapsedRealtimeNanos();
+
+    @GuardedBy("mLock")
+    private long mTotalNanos = -1;
+
+    /**
+     * @return Whether phases are still recorded, so callers can skip building
+     * phase names otherwise.
+     */
+    public boolean isRecording() {
+        synchronized (mLock) {
+            return mTotalNanos < 0;
+        }
+    }
+
+    /**
+     * @return The start of a phase to pass to {@link #endPhase}, or 0 if no
+     * longer recording.
+     */
+    public long beginPhase() {
+        return isRecording() ? SystemClock.elapsedRealtimeNanos() : 0;
+    }
+
+    public void endPhase(String name, long phaseStartNanos) {
+        if (phaseStartNanos == 0) {
+            return;
+        }
+        final long durationNanos = SystemClock.elapsedRealtimeNanos() - phaseStartNanos;
+        synchronized (mLock) {
+            if (mTotalNanos < 0) {
+                mPhaseNames.add(name);
+                mPhaseDurationsNanos.add(durationNanos);
+            }
+        }
+    }
+
+    /**
+     * Ends the profile and reports it to the drop box if not done yet this boot.
+     */
+    public void finish(final Context context) {
+        final String report;
+        synchronized (mLock) {
+            if (mTotalNanos >= 0) {
+                return;
+            }
+            mTotalNanos = SystemClock.elapsedRealtimeNanos() - mStartNanos;
+            report = buildReportLocked();
+        }
+
+        synchronized (sReportLock) {
+            if (sReportedThisBoot) {
+                return;
+            }
+            sReportedThisBoot = true;
+        }
+
+        // Calls out of the process, so not on the caller which may hold the provider lock.
+        BackgroundThread.getHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                DropBoxManager dropBoxManager = (DropBoxManager) context.getSystemService(
+                        Context.DROPBOX_SERVICE);
+                if (dropBoxManager != null && dropBoxManager.isTagEnabled(DROPBOX_TAG)) {
+                    dropBoxManager.addText(DROPBOX_TAG, report);
+                }
+            }
+        });
+    }
+
+    public void dump(PrintWriter pw) {
+        synchronized (mLock) {
+            pw.println("STARTUP PROFILE");
+            if (mTotalNanos < 0) {
+                pw.println("  (in progress)");
+            }
+            pw.print(buildReportLocked());
+        }
+    }
+
+    @GuardedBy("mLock")
+    private String buildReportLocked() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("build: ").append(Build.FINGERPRINT).append('\n');
+        if (mTotalNanos >= 0) {
+            builder.append("total: ").append(mTotalNanos / 1000000).append(" ms\n");
+        }
+        final int phaseCount = mPhaseNames.size();
+        for (int i = 0; i < phaseCount; i++) {
+            builder.append(mPhaseNames.get(i)).append(": ")
+                    .append(mPhaseDurationsNanos.get(i) / 1000).append(" us\n");
+        }
+        return builder.toString();
+    }
+}
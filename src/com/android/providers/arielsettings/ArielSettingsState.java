@@ -16,6 +16,7 @@
 
 package com.android.providers.arielsettings;
 
+import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
 import android.os.SystemClock;
@@ -23,11 +24,12 @@ import android.provider.ArielSettings;
 import android.provider.Settings;
 import android.text.TextUtils;
 import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.AtomicFile;
-import android.util.Base64;
 import android.util.Slog;
 import android.util.Xml;
 import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.os.BackgroundThread;
 import libcore.io.IoUtils;
 import libcore.util.Objects;
@@ -35,14 +37,21 @@ import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlSerializer;
 
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This class contains the state for one type of settings. It is responsible
@@ -54,6 +63,19 @@ import java.util.List;
  * etc, are atomically persisted since the asynchronous persistence is using
  * the same lock to grab the current state to write to disk.
  * </p>
+ * <p>
+ * A state may be layered over a read-only defaults state shared by all users.
+ * Settings that have their default value are served from the defaults layer
+ * and only the overrides are kept in memory and persisted for this state. The
+ * settings of the defaults layer have the id {@link #ID_NONE}.
+ * </p>
+ * <p>
+ * Values of at least {@link #BLOB_VALUE_MIN_LENGTH} characters are stored out
+ * of line in content addressed blob files next to the state file, so that they
+ * are written only when they change and not on every persist. The XML file
+ * keeps the hash of the blob. The blobs are read when the state is loaded,
+ * so reading a setting never does IO under the lock.
+ * </p>
  */
 final class ArielSettingsState {
     private static final boolean DEBUG = false;
@@ -73,11 +95,17 @@ final class ArielSettingsState {
 
     public static final int VERSION_UNDEFINED = -1;
 
+    // Id of the settings served by the defaults layer. The layer is shared by the
+    // states of all users, so its settings are in the id space of none of them.
+    public static final long ID_NONE = -1;
+
     private static final String TAG_SETTINGS = "arielsettings";
     private static final String TAG_SETTING = "arielsetting";
+    private static final String TAG_DELETED = "arieldeleted";
     private static final String ATTR_PACKAGE = "package";
 
     private static final String ATTR_VERSION = "version";
+    private static final String ATTR_BACKUP_GENERATION = "backupGeneration";
     private static final String ATTR_ID = "id";
     private static final String ATTR_NAME = "name";
 
@@ -91,15 +119,37 @@ final class ArielSettingsState {
      */
     private static final String ATTR_VALUE_BASE64 = "valueBase64";
 
+    /** Hash of the blob file holding a value stored out of line. */
+    private static final String ATTR_VALUE_BLOB = "valueBlob";
+
     // This was used in version 120 and before.
     private static final String NULL_VALUE_OLD_STYLE = "null";
 
+    static final int BLOB_VALUE_MIN_LENGTH = 4096;
+
+    private static final String BLOB_DIR_SUFFIX = ".blobs";
+    private static final String BLOB_HASH_ALGORITHM = "SHA-256";
+
     private final Object mLock;
 
+    // The lock if it is the instrumented provider lock, otherwise null.
+    private final ArielSettingsLock mInstrumentedLock;
+
     private final Handler mHandler = new MyHandler();
 
+    // Serializes the writes of the async persistence and of persistSyncLocked.
+    // Never held while waiting for mLock, as sync writes hold mLock.
+    private final Object mWriteLock = new Object();
+
+    // Sequence of the last write snapshot taken and of the last one written.
     @GuardedBy("mLock")
-    private final ArrayMap<String, Setting> mSettings = new ArrayMap<>();
+    private long mSnapshotSeq;
+
+    @GuardedBy("mWriteLock")
+    private long mWrittenSeq;
+
+    @GuardedBy("mLock")
+    private final ArielSettingsTable<Setting> mSettings = new ArielSettingsTable<>();
 
     @GuardedBy("mLock")
     private final ArrayMap<String, Integer> mPackageToMemoryUsage;
@@ -110,6 +160,9 @@ final class ArielSettingsState {
     @GuardedBy("mLock")
     private final File mStatePersistFile;
 
+    // Read-only layer with the default values, shared by the states of all users.
+    private final ArielSettingsState mDefaults;
+
     public final int mKey;
 
     @GuardedBy("mLock")
@@ -124,16 +177,55 @@ final class ArielSettingsState {
     @GuardedBy("mLock")
     private boolean mWriteScheduled;
 
+    // Mutations made since the last persist, all written by the next one.
+    @GuardedBy("mLock")
+    private int mMutationsSinceWrite;
+
+    // Persistence metrics, updated only by the writing thread.
+    private final AtomicLong mPersistCount = new AtomicLong();
+    private final AtomicLong mPersistedBytes = new AtomicLong();
+    private final AtomicLong mPersistedMutations = new AtomicLong();
+    private final ArielSettingsHistogram mSerializeTimes = new ArielSettingsHistogram();
+    private final ArielSettingsHistogram mFinishWriteTimes = new ArielSettingsHistogram();
+
     @GuardedBy("mLock")
     private long mNextId;
 
-    public ArielSettingsState(Object lock, File file, int key, int maxBytesPerAppPackage) {
+    // Generation covered by the last successful backup or -1 if none.
+    @GuardedBy("mLock")
+    private long mBackupGeneration = -1;
+
+    // Settings deleted since the last backup mapped to the generation of the deletion.
+    @GuardedBy("mLock")
+    private final ArrayMap<String, Long> mDeletedSinceBackup = new ArrayMap<>();
+
+    // Whether reading dropped values matching the defaults, so the file is to be rewritten.
+    @GuardedBy("mLock")
+    private boolean mDroppedDefaultsOnRead;
+
+    public ArielSettingsState(Object lock, File file, int key, int maxBytesPerAppPackage,
+            ArielSettingsState defaults) {
+        this(lock, file, key, maxBytesPerAppPackage, defaults, true);
+    }
+
+    /**
+     * Creates a state, optionally reading its file without holding the lock.
+     * That is only safe while the state is not visible to other threads, and
+     * it must then be published under the lock before calling
+     * {@link #onPublishedLocked}. Such a read never restores the backup of the
+     * file, as a write may be in progress, and fails with an
+     * {@link IllegalStateException} if the file is being replaced.
+     */
+    public ArielSettingsState(Object lock, File file, int key, int maxBytesPerAppPackage,
+            ArielSettingsState defaults, boolean readLocked) {
         // It is important that we use the same lock as the settings provider
         // to ensure multiple mutations on this state are atomicaly persisted
         // as the async persistence should be blocked while we make changes.
         mLock = lock;
+        mInstrumentedLock = (lock instanceof ArielSettingsLock) ? (ArielSettingsLock) lock : null;
         mStatePersistFile = file;
         mKey = key;
+        mDefaults = defaults;
         if (maxBytesPerAppPackage == MAX_BYTES_PER_APP_PACKAGE_LIMITED) {
             mMaxBytesPerAppPackage = maxBytesPerAppPackage;
             mPackageToMemoryUsage = new ArrayMap<>();
@@ -141,8 +233,46 @@ final class ArielSettingsState {
             mMaxBytesPerAppPackage = maxBytesPerAppPackage;
             mPackageToMemoryUsage = null;
         }
-        synchronized (mLock) {
-            readStateSyncLocked();
+        if (readLocked) {
+            synchronized (mLock) {
+                readStateSyncLocked(true);
+                onPublishedLocked();
+            }
+        } else {
+            // Not visible to other threads yet, so there is nothing to guard.
+            readStateSyncLocked(false);
+        }
+    }
+
+    /**
+     * Creates a read-only state holding default values. It is never persisted
+     * and is meant to be shared as the defaults layer of other states.
+     */
+    public ArielSettingsState(Object lock, int key, ArrayMap<String, String> defaults) {
+        mLock = lock;
+        mInstrumentedLock = null;
+        mStatePersistFile = null;
+        mKey = key;
+        mDefaults = null;
+        mMaxBytesPerAppPackage = MAX_BYTES_PER_APP_PACKAGE_UNLIMITED;
+        mPackageToMemoryUsage = null;
+        final int defaultCount = defaults.size();
+        for (int i = 0; i < defaultCount; i++) {
+            String name = defaults.keyAt(i);
+            mSettings.put(name, new Setting(name, defaults.valueAt(i), SYSTEM_PACKAGE_NAME,
+                    ID_NONE));
+        }
+    }
+
+    /**
+     * Finishes reading the state once it is visible to other threads.
+     */
+    // The settings provider must hold its lock when calling here.
+    public void onPublishedLocked() {
+        // Rewrite the file without the values we dropped.
+        if (mDroppedDefaultsOnRead) {
+            mDroppedDefaultsOnRead = false;
+            scheduleWriteIfNeededLocked();
         }
     }
 
@@ -161,21 +291,80 @@ final class ArielSettingsState {
         scheduleWriteIfNeededLocked();
     }
 
+    // The settings provider must hold its lock when calling here.
+    public long getGenerationLocked() {
+        // The id of the last change as ids are monotonic.
+        return mNextId - 1;
+    }
+
+    // The settings provider must hold its lock when calling here.
+    public long getBackupGenerationLocked() {
+        return mBackupGeneration;
+    }
+
+    /**
+     * Records that all changes up to the given generation are backed up, so
+     * that the next incremental backup only needs the later changes.
+     */
+    // The settings provider must hold its lock when calling here.
+    public void setBackupGenerationLocked(long generation) {
+        if (generation == mBackupGeneration) {
+            return;
+        }
+        mBackupGeneration = generation;
+        for (int i = mDeletedSinceBackup.size() - 1; i >= 0; i--) {
+            if (mDeletedSinceBackup.valueAt(i) <= generation) {
+                mDeletedSinceBackup.removeAt(i);
+            }
+        }
+        scheduleWriteIfNeededLocked();
+    }
+
+    /**
+     * Gets the names of the settings changed and deleted after a generation.
+     * A negative generation yields all settings as changed.
+     */
+    // The settings provider must hold its lock when calling here.
+    public void getChangesSinceLocked(long generation, List<String> outChanged,
+            List<String> outDeleted) {
+        if (generation < 0) {
+            outChanged.addAll(getSettingNamesLocked());
+            return;
+        }
+        final int settingCapacity = mSettings.capacity();
+        for (int i = 0; i < settingCapacity; i++) {
+            Setting setting = mSettings.valueAt(i);
+            if (setting != null && setting.id > generation) {
+                outChanged.add(setting.name);
+            }
+        }
+        final int deletedCount = mDeletedSinceBackup.size();
+        for (int i = 0; i < deletedCount; i++) {
+            if (mDeletedSinceBackup.valueAt(i) > generation) {
+                outDeleted.add(mDeletedSinceBackup.keyAt(i));
+            }
+        }
+    }
+
     // The settings provider must hold its lock when calling here.
     public void onPackageRemovedLocked(String packageName) {
         boolean removedSomething = false;
 
-        final int settingCount = mSettings.size();
-        for (int i = settingCount - 1; i >= 0; i--) {
-            String name = mSettings.keyAt(i);
+        final int settingCapacity = mSettings.capacity();
+        for (int i = settingCapacity - 1; i >= 0; i--) {
+            Setting setting = mSettings.valueAt(i);
+            if (setting == null) {
+                continue;
+            }
             // Settings defined by us are never dropped.
+            String name = setting.name;
             if (ArielSettings.System.PUBLIC_SETTINGS.contains(name)
                     || ArielSettings.System.PRIVATE_SETTINGS.contains(name)) {
                 continue;
             }
-            Setting setting = mSettings.valueAt(i);
             if (packageName.equals(setting.packageName)) {
                 mSettings.removeAt(i);
+                recordDeletionLocked(name);
                 removedSomething = true;
             }
         }
@@ -188,10 +377,21 @@ final class ArielSettingsState {
     // The settings provider must hold its lock when calling here.
     public List<String> getSettingNamesLocked() {
         ArrayList<String> names = new ArrayList<>();
-        final int settingsCount = mSettings.size();
-        for (int i = 0; i < settingsCount; i++) {
+        final int settingsCapacity = mSettings.capacity();
+        for (int i = 0; i < settingsCapacity; i++) {
             String name = mSettings.keyAt(i);
-            names.add(name);
+            if (name != null) {
+                names.add(name);
+            }
+        }
+        if (mDefaults != null) {
+            final int defaultCapacity = mDefaults.mSettings.capacity();
+            for (int i = 0; i < defaultCapacity; i++) {
+                String name = mDefaults.mSettings.keyAt(i);
+                if (name != null && !mSettings.containsKey(name)) {
+                    names.add(name);
+                }
+            }
         }
         return names;
     }
@@ -201,7 +401,11 @@ final class ArielSettingsState {
         if (TextUtils.isEmpty(name)) {
             return null;
         }
-        return mSettings.get(name);
+        Setting setting = mSettings.get(name);
+        if (setting == null && mDefaults != null) {
+            setting = mDefaults.mSettings.get(name);
+        }
+        return setting;
     }
 
     // The settings provider must hold its lock when calling here.
@@ -219,8 +423,26 @@ final class ArielSettingsState {
             return false;
         }
 
+        // Share the strings with the states of the other users.
+        name = ArielSettingsStringPool.intern(name);
+        value = ArielSettingsStringPool.internValue(value);
+        packageName = ArielSettingsStringPool.intern(packageName);
+
         Setting oldState = mSettings.get(name);
-        String oldValue = (oldState != null) ? oldState.value : null;
+        String oldValue = (oldState != null) ? oldState.getValue() : null;
+
+        // Values equal to the default are served by the defaults layer.
+        Setting defaultState = (mDefaults != null) ? mDefaults.mSettings.get(name) : null;
+        if (defaultState != null && Objects.equal(value, defaultState.value)) {
+            if (oldState == null) {
+                return false;
+            }
+            mSettings.remove(name);
+            recordDeletionLocked(name);
+            updateMemoryUsagePerPackageLocked(oldState.packageName, oldValue, null);
+            scheduleWriteIfNeededLocked();
+            return true;
+        }
 
         if (oldState != null) {
             if (!oldState.update(value, packageName)) {
@@ -229,6 +451,7 @@ final class ArielSettingsState {
         } else {
             Setting state = new Setting(name, value, packageName);
             mSettings.put(name, state);
+            mDeletedSinceBackup.remove(name);
         }
 
         updateMemoryUsagePerPackageLocked(packageName, oldValue, value);
@@ -238,21 +461,39 @@ final class ArielSettingsState {
         return true;
     }
 
+    /**
+     * @return Whether there are changes not handed to the persistence thread
+     * yet, a write in progress is only visible from that thread.
+     */
+    // The settings provider must hold its lock when calling here.
+    public boolean hasPendingWriteLocked() {
+        return mDirty;
+    }
+
     // The settings provider must hold its lock when calling here.
     public void persistSyncLocked() {
         mHandler.removeMessages(MyHandler.MSG_PERSIST_SETTINGS);
         doWriteState();
     }
 
+    /**
+     * Deletes the value set for a setting, which reverts the setting to its
+     * default if it has one. A setting only holding its default cannot be
+     * deleted, as the defaults are read-only.
+     *
+     * @return Whether a set value was deleted.
+     */
     // The settings provider must hold its lock when calling here.
     public boolean deleteSettingLocked(String name) {
-        if (TextUtils.isEmpty(name) || !hasSettingLocked(name)) {
+        // Defaults are read-only, so only an override can be deleted.
+        if (TextUtils.isEmpty(name) || !mSettings.containsKey(name)) {
             return false;
         }
 
         Setting oldState = mSettings.remove(name);
+        recordDeletionLocked(name);
 
-        updateMemoryUsagePerPackageLocked(oldState.packageName, oldState.value, null);
+        updateMemoryUsagePerPackageLocked(oldState.packageName, oldState.getValue(), null);
 
         scheduleWriteIfNeededLocked();
 
@@ -262,6 +503,11 @@ final class ArielSettingsState {
     // The settings provider must hold its lock when calling here.
     public void destroyLocked(Runnable callback) {
         mHandler.removeMessages(MyHandler.MSG_PERSIST_SETTINGS);
+        // The removed write would have ended the pending persist slice.
+        if (mWriteScheduled) {
+            ArielSettingsTrace.asyncEnd(ArielSettingsTrace.ASYNC_PERSIST, mKey);
+            mWriteScheduled = false;
+        }
         if (callback != null) {
             if (mDirty) {
                 // Do it without a delay.
@@ -273,8 +519,69 @@ final class ArielSettingsState {
         }
     }
 
+    /**
+     * Checks that inserting all the given settings for a package stays within
+     * its quota, so that a batch is either inserted in full or not at all.
+     *
+     * @throws IllegalStateException If the package would exceed its quota.
+     */
+    // The settings provider must hold its lock when calling here.
+    public void enforceMemoryUsageForBatchLocked(List<String> names, List<String> values,
+            String packageName) {
+        if (mPackageToMemoryUsage == null) {
+            return;
+        }
+
+        // Apply the batch to a copy of the usage, as insertSettingLocked would.
+        ArrayMap<String, Integer> packageToMemoryUsage = new ArrayMap<>(mPackageToMemoryUsage);
+        // The value and package a name has after the earlier entries, null if deleted.
+        ArrayMap<String, String[]> batchStates = new ArrayMap<>();
+        final int settingCount = names.size();
+        for (int i = 0; i < settingCount; i++) {
+            String name = names.get(i);
+            if (TextUtils.isEmpty(name)) {
+                continue;
+            }
+            String value = values.get(i);
+
+            final String[] oldState;
+            if (batchStates.containsKey(name)) {
+                oldState = batchStates.get(name);
+            } else {
+                Setting setting = mSettings.get(name);
+                oldState = (setting != null)
+                        ? new String[] {setting.getValue(), setting.packageName} : null;
+            }
+            String oldValue = (oldState != null) ? oldState[0] : null;
+
+            Setting defaultState = (mDefaults != null) ? mDefaults.mSettings.get(name) : null;
+            if (defaultState != null && Objects.equal(value, defaultState.value)) {
+                if (oldState != null) {
+                    updateMemoryUsagePerPackageLocked(packageToMemoryUsage, oldState[1],
+                            oldValue, null);
+                }
+                batchStates.put(name, null);
+                continue;
+            }
+
+            if (oldState != null && Objects.equal(value, oldValue)) {
+                continue;
+            }
+            updateMemoryUsagePerPackageLocked(packageToMemoryUsage, packageName, oldValue,
+                    value);
+            batchStates.put(name, new String[] {value, packageName});
+        }
+    }
+
     private void updateMemoryUsagePerPackageLocked(String packageName, String oldValue,
             String newValue) {
+        updateMemoryUsagePerPackageLocked(mPackageToMemoryUsage, packageName, oldValue,
+                newValue);
+    }
+
+    private void updateMemoryUsagePerPackageLocked(
+            ArrayMap<String, Integer> packageToMemoryUsage, String packageName,
+            String oldValue, String newValue) {
         if (mMaxBytesPerAppPackage == MAX_BYTES_PER_APP_PACKAGE_UNLIMITED) {
             return;
         }
@@ -287,7 +594,7 @@ final class ArielSettingsState {
         final int newValueSize = (newValue != null) ? newValue.length() : 0;
         final int deltaSize = newValueSize - oldValueSize;
 
-        Integer currentSize = mPackageToMemoryUsage.get(packageName);
+        Integer currentSize = packageToMemoryUsage.get(packageName);
         final int newSize = Math.max((currentSize != null)
                 ? currentSize + deltaSize : deltaSize, 0);
 
@@ -302,14 +609,23 @@ final class ArielSettingsState {
                     + " size: " + newSize + " bytes.");
         }
 
-        mPackageToMemoryUsage.put(packageName, newSize);
+        packageToMemoryUsage.put(packageName, newSize);
+    }
+
+    private void recordDeletionLocked(String name) {
+        // Also before the first backup is committed, as the full backup being
+        // taken may already hold the setting. Pruned once a backup commits.
+        mDeletedSinceBackup.put(name, mNextId++);
     }
 
     private boolean hasSettingLocked(String name) {
-        return mSettings.indexOfKey(name) >= 0;
+        return mSettings.containsKey(name)
+                || (mDefaults != null && mDefaults.mSettings.containsKey(name));
     }
 
     private void scheduleWriteIfNeededLocked() {
+        mMutationsSinceWrite++;
+
         // If dirty then we have a write already scheduled.
         if (!mDirty) {
             mDirty = true;
@@ -343,76 +659,332 @@ final class ArielSettingsState {
             Message message = mHandler.obtainMessage(MyHandler.MSG_PERSIST_SETTINGS);
             mHandler.sendMessageDelayed(message, WRITE_SETTINGS_DELAY_MILLIS);
             mWriteScheduled = true;
+            ArielSettingsTrace.asyncBegin(ArielSettingsTrace.ASYNC_PERSIST, mKey);
         }
     }
 
     private void doWriteState() {
-        if (DEBUG_PERSISTENCE) {
-            Slog.i(LOG_TAG, "[PERSIST START]");
-        }
+        ArielSettingsTrace.begin("writeState", mKey);
+        try {
+            if (DEBUG_PERSISTENCE) {
+                Slog.i(LOG_TAG, "[PERSIST START]");
+            }
 
-        AtomicFile destination = new AtomicFile(mStatePersistFile);
+            AtomicFile destination = new AtomicFile(mStatePersistFile);
+
+            final int version;
+            final long backupGeneration;
+            final ArrayMap<String, Long> deletedSinceBackup;
+            final ArrayList<SettingSnapshot> settings;
+            final int mutationCount;
+            final long snapshotSeq;
+
+            long waitStartNanos = beginLockWait();
+            synchronized (mLock) {
+                try (ArielSettingsLock.Hold hold = lockAcquired(waitStartNanos)) {
+                    version = mVersion;
+                    backupGeneration = mBackupGeneration;
+                    deletedSinceBackup = new ArrayMap<>(mDeletedSinceBackup);
+                    settings = new ArrayList<>(mSettings.size());
+                    final int settingCapacity = mSettings.capacity();
+                    for (int i = 0; i < settingCapacity; i++) {
+                        Setting setting = mSettings.valueAt(i);
+                        if (setting != null) {
+                            settings.add(new SettingSnapshot(setting));
+                        }
+                    }
+                    mutationCount = mMutationsSinceWrite;
+                    mMutationsSinceWrite = 0;
+                    snapshotSeq = ++mSnapshotSeq;
+                    mDirty = false;
+                    if (mWriteScheduled) {
+                        ArielSettingsTrace.asyncEnd(ArielSettingsTrace.ASYNC_PERSIST, mKey);
+                        mWriteScheduled = false;
+                    }
+                }
+            }
 
-        final int version;
-        final ArrayMap<String, Setting> settings;
+            final ArrayList<Setting> blobSettings = new ArrayList<>();
+            final ArrayList<String> blobValues = new ArrayList<>();
+            final ArrayList<String> blobHashes = new ArrayList<>();
+            final ArraySet<String> referencedBlobs = new ArraySet<>();
 
-        synchronized (mLock) {
-            version = mVersion;
-            settings = new ArrayMap<>(mSettings);
-            mDirty = false;
-            mWriteScheduled = false;
-        }
+            // A snapshot older than the written one is dropped, so a stale write
+            // never replaces the file nor deletes the blobs the file references.
+            synchronized (mWriteLock) {
+                if (snapshotSeq < mWrittenSeq) {
+                    return;
+                }
 
-        FileOutputStream out = null;
-        try {
-            out = destination.startWrite();
+                FileOutputStream out = null;
+                try {
+                    final long serializeStartNanos = SystemClock.elapsedRealtimeNanos();
+                    out = destination.startWrite();
+
+                    XmlSerializer serializer = Xml.newSerializer();
+                    serializer.setOutput(out, StandardCharsets.UTF_8.name());
+                    serializer.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output",
+                            true);
+                    serializer.startDocument(null, true);
+                    serializer.startTag(null, TAG_SETTINGS);
+                    serializer.attribute(null, ATTR_VERSION, String.valueOf(version));
+                    if (backupGeneration >= 0) {
+                        serializer.attribute(null, ATTR_BACKUP_GENERATION,
+                                Long.toString(backupGeneration));
+                    }
 
-            XmlSerializer serializer = Xml.newSerializer();
-            serializer.setOutput(out, StandardCharsets.UTF_8.name());
-            serializer.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
-            serializer.startDocument(null, true);
-            serializer.startTag(null, TAG_SETTINGS);
-            serializer.attribute(null, ATTR_VERSION, String.valueOf(version));
+                    final int deletedCount = deletedSinceBackup.size();
+                    for (int i = 0; i < deletedCount; i++) {
+                        serializer.startTag(null, TAG_DELETED);
+                        serializer.attribute(null, ATTR_ID,
+                                deletedSinceBackup.valueAt(i).toString());
+                        serializer.attribute(null, ATTR_NAME, deletedSinceBackup.keyAt(i));
+                        serializer.endTag(null, TAG_DELETED);
+                    }
 
-            final int settingCount = settings.size();
-            for (int i = 0; i < settingCount; i++) {
-                Setting setting = settings.valueAt(i);
+                    final int settingCount = settings.size();
+                    for (int i = 0; i < settingCount; i++) {
+                        SettingSnapshot setting = settings.get(i);
+
+                        // Fat values go to a blob file written only if not there yet.
+                        String blobHash = setting.blobHash;
+                        final String value = setting.value;
+                        if (blobHash == null && value != null
+                                && value.length() >= BLOB_VALUE_MIN_LENGTH) {
+                            blobHash = writeBlobIfNeeded(value);
+                            blobSettings.add(setting.setting);
+                            blobValues.add(value);
+                            blobHashes.add(blobHash);
+                        }
+                        if (blobHash != null) {
+                            referencedBlobs.add(blobHash);
+                        }
+
+                        writeSingleSetting(version, serializer, setting, blobHash);
+
+                        if (DEBUG_PERSISTENCE) {
+                            Slog.i(LOG_TAG, "[PERSISTED]" + setting.name + "=" + value);
+                        }
+                    }
 
-                writeSingleSetting(mVersion, serializer, setting.getId(), setting.getName(),
-                        setting.getValue(), setting.getPackageName());
+                    serializer.endTag(null, TAG_SETTINGS);
+                    serializer.endDocument();
+                    final long persistedBytes = out.getChannel().position();
+                    final long finishWriteStartNanos = SystemClock.elapsedRealtimeNanos();
+                    destination.finishWrite(out);
+                    final long finishWriteEndNanos = SystemClock.elapsedRealtimeNanos();
 
-                if (DEBUG_PERSISTENCE) {
-                    Slog.i(LOG_TAG, "[PERSISTED]" + setting.getName() + "=" + setting.getValue());
+                    mPersistCount.incrementAndGet();
+                    mPersistedBytes.addAndGet(persistedBytes);
+                    mPersistedMutations.addAndGet(mutationCount);
+                    mSerializeTimes.record(finishWriteStartNanos - serializeStartNanos);
+                    mFinishWriteTimes.record(finishWriteEndNanos - finishWriteStartNanos);
+
+                    mWrittenSeq = snapshotSeq;
+
+                    // Only the blobs of the committed file are kept, the backup is gone.
+                    deleteUnreferencedBlobs(referencedBlobs);
+
+                    if (DEBUG_PERSISTENCE) {
+                        Slog.i(LOG_TAG, "[PERSIST END]");
+                    }
+
+                    // Any error while writing is fatal.
+                } catch (Throwable t) {
+                    Slog.wtf(LOG_TAG, "Failed to write settings, restoring backup", t);
+                    destination.failWrite(out);
+                    throw new IllegalStateException("Failed to write settings, restoring backup",
+                            t);
+                } finally {
+                    IoUtils.closeQuietly(out);
                 }
             }
 
-            serializer.endTag(null, TAG_SETTINGS);
-            serializer.endDocument();
-            destination.finishWrite(out);
-
-            if (DEBUG_PERSISTENCE) {
-                Slog.i(LOG_TAG, "[PERSIST END]");
+            // The blobs are on disk, so later writes only reference them.
+            final int blobCount = blobSettings.size();
+            if (blobCount > 0) {
+                waitStartNanos = beginLockWait();
+                synchronized (mLock) {
+                    try (ArielSettingsLock.Hold hold = lockAcquired(waitStartNanos)) {
+                        for (int i = 0; i < blobCount; i++) {
+                            blobSettings.get(i).onBlobWrittenLocked(blobValues.get(i),
+                                    blobHashes.get(i));
+                        }
+                    }
+                }
             }
+        } finally {
+            ArielSettingsTrace.end();
+        }
+    }
+
+    /**
+     * Prints how often and how much this state was persisted, and how long it took.
+     */
+    public void dumpPersistenceStats(PrintWriter pw, String label) {
+        final long persistCount = mPersistCount.get();
+        final long persistedBytes = mPersistedBytes.get();
+        final long persistedMutations = mPersistedMutations.get();
+        pw.append(label).append(": persists=").print(persistCount);
+        pw.append(" bytes=").print(persistedBytes);
+        pw.append(" mutations=").print(persistedMutations);
+        if (persistedMutations > 0) {
+            pw.append(" bytesPerMutation=").print(persistedBytes / persistedMutations);
+        }
+        if (persistCount > 0) {
+            pw.append(" mutationsPerPersist=").print(persistedMutations / persistCount);
+        }
+        pw.println();
+        mSerializeTimes.dump(pw, label + " serialize");
+        mFinishWriteTimes.dump(pw, label + " finishWrite");
+    }
+
+    /**
+     * Writes the persistence metrics under keys starting with the given prefix.
+     */
+    public void writePersistenceStatsToBundle(Bundle bundle, String prefix) {
+        bundle.putLong(prefix + ".persists", mPersistCount.get());
+        bundle.putLong(prefix + ".bytes", mPersistedBytes.get());
+        bundle.putLong(prefix + ".mutations", mPersistedMutations.get());
+        mSerializeTimes.writeToBundle(bundle, prefix + ".serialize");
+        mFinishWriteTimes.writeToBundle(bundle, prefix + ".finishWrite");
+    }
+
+    /**
+     * Clears the persistence metrics. A persist running meanwhile may be
+     * partially counted.
+     */
+    public void resetPersistenceStats() {
+        mPersistCount.set(0);
+        mPersistedBytes.set(0);
+        mPersistedMutations.set(0);
+        mSerializeTimes.reset();
+        mFinishWriteTimes.reset();
+    }
+
+    private long beginLockWait() {
+        return (mInstrumentedLock != null) ? mInstrumentedLock.beginWait() : 0;
+    }
+
+    private ArielSettingsLock.Hold lockAcquired(long waitStartNanos) {
+        return (mInstrumentedLock != null) ? mInstrumentedLock.acquired(
+                ArielSettingsLock.SITE_WRITE_STATE, waitStartNanos) : ArielSettingsLock.Hold.NONE;
+    }
+
+    private static void writeSingleSetting(int version, XmlSerializer serializer,
+            SettingSnapshot setting, String blobHash) throws IOException {
+        if (!setting.persistable) {
+            // This shouldn't happen.
+            return;
+        }
+        serializer.startTag(null, TAG_SETTING);
+        serializer.attribute(null, ATTR_ID, Long.toString(setting.id));
+        serializer.attribute(null, ATTR_NAME, setting.name);
+        if (blobHash != null) {
+            serializer.attribute(null, ATTR_VALUE_BLOB, blobHash);
+        } else {
+            setValueAttribute(version, serializer, setting.value, setting.valueIsBinary);
+        }
+        serializer.attribute(null, ATTR_PACKAGE, setting.packageName);
+        serializer.endTag(null, TAG_SETTING);
+    }
+
+    private File getBlobDir() {
+        return new File(mStatePersistFile.getParentFile(),
+                mStatePersistFile.getName() + BLOB_DIR_SUFFIX);
+    }
 
-            // Any error while writing is fatal.
-        } catch (Throwable t) {
-            Slog.wtf(LOG_TAG, "Failed to write settings, restoring backup", t);
+    private String writeBlobIfNeeded(String value) throws IOException {
+        final String blobHash = computeBlobHash(value);
+        final File blobDir = getBlobDir();
+        final File blobFile = new File(blobDir, blobHash);
+        if (blobFile.exists()) {
+            return blobHash;
+        }
+        if (!blobDir.isDirectory() && !blobDir.mkdirs()) {
+            throw new IOException("Cannot create blob directory: " + blobDir);
+        }
+        AtomicFile destination = new AtomicFile(blobFile);
+        FileOutputStream out = null;
+        try {
+            out = destination.startWrite();
+            // UTF-16BE preserves broken surrogate pairs as-is.
+            DataOutputStream dataOut = new DataOutputStream(out);
+            dataOut.writeChars(value);
+            dataOut.flush();
+            destination.finishWrite(out);
+        } catch (IOException e) {
             destination.failWrite(out);
-            throw new IllegalStateException("Failed to write settings, restoring backup", t);
+            throw e;
+        }
+        return blobHash;
+    }
+
+    private String readBlob(String blobHash) throws IOException {
+        final File blobFile = new File(getBlobDir(), blobHash);
+        FileInputStream in = null;
+        try {
+            in = new AtomicFile(blobFile).openRead();
+            FileChannel channel = in.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size());
+            return buffer.asCharBuffer().toString();
         } finally {
-            IoUtils.closeQuietly(out);
+            IoUtils.closeQuietly(in);
+        }
+    }
+
+    private void deleteUnreferencedBlobs(ArraySet<String> referencedBlobs) {
+        File[] blobFiles = getBlobDir().listFiles();
+        if (blobFiles == null) {
+            return;
+        }
+        for (File blobFile : blobFiles) {
+            // Also drops the leftovers of an AtomicFile, e.g. the backup.
+            String blobName = blobFile.getName();
+            if (!referencedBlobs.contains(blobName)) {
+                blobFile.delete();
+            }
         }
     }
 
-    static void writeSingleSetting(int version, XmlSerializer serializer, String id,
+    private static String computeBlobHash(String value) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(BLOB_HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        final byte[] chunk = new byte[1024];
+        int chunkIndex = 0;
+        final int length = value.length();
+        for (int i = 0; i < length; i++) {
+            final char ch = value.charAt(i);
+            chunk[chunkIndex++] = (byte) (ch >> 8);
+            chunk[chunkIndex++] = (byte) ch;
+            if (chunkIndex == chunk.length) {
+                digest.update(chunk, 0, chunkIndex);
+                chunkIndex = 0;
+            }
+        }
+        digest.update(chunk, 0, chunkIndex);
+        final byte[] hash = digest.digest();
+        final StringBuilder builder = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            builder.append(Character.forDigit((b >> 4) & 0xf, 16));
+            builder.append(Character.forDigit(b & 0xf, 16));
+        }
+        return builder.toString();
+    }
+
+    static void writeSingleSetting(int version, XmlSerializer serializer, long id,
             String name, String value, String packageName) throws IOException {
-        if (id == null || isBinary(id) || name == null || isBinary(name)
-                || packageName == null || isBinary(packageName)) {
+        if (name == null || isBinary(name) || packageName == null || isBinary(packageName)) {
             // This shouldn't happen.
             return;
         }
         serializer.startTag(null, TAG_SETTING);
-        serializer.attribute(null, ATTR_ID, id);
+        serializer.attribute(null, ATTR_ID, Long.toString(id));
         serializer.attribute(null, ATTR_NAME, name);
         setValueAttribute(version, serializer, value);
         serializer.attribute(null, ATTR_PACKAGE, packageName);
@@ -421,10 +993,15 @@ final class ArielSettingsState {
 
     static void setValueAttribute(int version, XmlSerializer serializer, String value)
             throws IOException {
+        setValueAttribute(version, serializer, value, value != null && isBinary(value));
+    }
+
+    private static void setValueAttribute(int version, XmlSerializer serializer, String value,
+            boolean valueIsBinary) throws IOException {
         if (version >= SETTINGS_VERSOIN_NEW_ENCODING) {
             if (value == null) {
                 // Null value -> No ATTR_VALUE nor ATTR_VALUE_BASE64.
-            } else if (isBinary(value)) {
+            } else if (valueIsBinary) {
                 serializer.attribute(null, ATTR_VALUE_BASE64, base64Encode(value));
             } else {
                 serializer.attribute(null, ATTR_VALUE, value);
@@ -462,27 +1039,34 @@ final class ArielSettingsState {
         }
     }
 
-    private void readStateSyncLocked() {
-        FileInputStream in;
-        if (!mStatePersistFile.exists()) {
-            return;
-        }
+    private void readStateSyncLocked(boolean restoreBackup) {
+        ArielSettingsTrace.begin("readState", mKey);
         try {
-            in = new AtomicFile(mStatePersistFile).openRead();
-        } catch (FileNotFoundException fnfe) {
-            Slog.i(LOG_TAG, "No settings state");
-            return;
-        }
-        try {
-            XmlPullParser parser = Xml.newPullParser();
-            parser.setInput(in, StandardCharsets.UTF_8.name());
-            parseStateLocked(parser);
-
-        } catch (XmlPullParserException | IOException e) {
-            throw new IllegalStateException("Failed parsing settings file: "
-                    + mStatePersistFile , e);
+            FileInputStream in;
+            if (mStatePersistFile == null || !mStatePersistFile.exists()) {
+                return;
+            }
+            try {
+                // Reading the file as is never changes it, unlike restoring the backup.
+                in = restoreBackup ? new AtomicFile(mStatePersistFile).openRead()
+                        : new FileInputStream(mStatePersistFile);
+            } catch (FileNotFoundException fnfe) {
+                Slog.i(LOG_TAG, "No settings state");
+                return;
+            }
+            try {
+                XmlPullParser parser = Xml.newPullParser();
+                parser.setInput(in, StandardCharsets.UTF_8.name());
+                parseStateLocked(parser);
+
+            } catch (XmlPullParserException | IOException e) {
+                throw new IllegalStateException("Failed parsing settings file: "
+                        + mStatePersistFile , e);
+            } finally {
+                IoUtils.closeQuietly(in);
+            }
         } finally {
-            IoUtils.closeQuietly(in);
+            ArielSettingsTrace.end();
         }
     }
 
@@ -508,6 +1092,13 @@ final class ArielSettingsState {
 
         mVersion = Integer.parseInt(parser.getAttributeValue(null, ATTR_VERSION));
 
+        final String backupGeneration = parser.getAttributeValue(null, ATTR_BACKUP_GENERATION);
+        if (backupGeneration != null) {
+            mBackupGeneration = Long.parseLong(backupGeneration);
+        }
+
+        boolean droppedDefaults = false;
+
         final int outerDepth = parser.getDepth();
         int type;
         while ((type = parser.next()) != XmlPullParser.END_DOCUMENT
@@ -518,17 +1109,63 @@ final class ArielSettingsState {
 
             String tagName = parser.getName();
             if (tagName.equals(TAG_SETTING)) {
-                String id = parser.getAttributeValue(null, ATTR_ID);
-                String name = parser.getAttributeValue(null, ATTR_NAME);
-                String value = getValueAttribute(parser);
-                String packageName = parser.getAttributeValue(null, ATTR_PACKAGE);
-                mSettings.put(name, new Setting(name, value, packageName, id));
+                final long id = Long.parseLong(parser.getAttributeValue(null, ATTR_ID));
+                String name = ArielSettingsStringPool.intern(
+                        parser.getAttributeValue(null, ATTR_NAME));
+                String blobHash = parser.getAttributeValue(null, ATTR_VALUE_BLOB);
+                String value;
+                if (blobHash == null) {
+                    value = ArielSettingsStringPool.internValue(getValueAttribute(parser));
+                } else {
+                    // Read now as reads must not do IO under the lock.
+                    try {
+                        value = readBlob(blobHash);
+                    } catch (IOException e) {
+                        // Losing one setting must not fail loading the whole table.
+                        Slog.wtf(LOG_TAG, "Dropping setting " + name
+                                + " with unreadable blob " + blobHash, e);
+                        continue;
+                    }
+                }
+                String packageName = ArielSettingsStringPool.intern(
+                        parser.getAttributeValue(null, ATTR_PACKAGE));
+
+                // Drop platform values that match the defaults layer.
+                if (blobHash == null && isDefaultValueLocked(name, value, packageName)) {
+                    droppedDefaults = true;
+                    continue;
+                }
+
+                Setting setting = new Setting(name, value, packageName, id);
+                // The blob is already on disk, so no need to write it again.
+                setting.blobHash = blobHash;
+                mSettings.put(name, setting);
 
                 if (DEBUG_PERSISTENCE) {
                     Slog.i(LOG_TAG, "[RESTORED] " + name + "=" + value);
                 }
+            } else if (tagName.equals(TAG_DELETED)) {
+                final long id = Long.parseLong(parser.getAttributeValue(null, ATTR_ID));
+                String name = parser.getAttributeValue(null, ATTR_NAME);
+                mDeletedSinceBackup.put(name, id);
+                mNextId = Math.max(mNextId, id + 1);
             }
         }
+
+        // The changes behind the backup may all be gone, never reuse their ids
+        // or changes after reading would be missed by the next backup.
+        mNextId = Math.max(mNextId, mBackupGeneration + 1);
+
+        // The file is rewritten once the state is published.
+        mDroppedDefaultsOnRead = droppedDefaults;
+    }
+
+    private boolean isDefaultValueLocked(String name, String value, String packageName) {
+        if (mDefaults == null || !SYSTEM_PACKAGE_NAME.equals(packageName)) {
+            return false;
+        }
+        Setting defaultState = mDefaults.mSettings.get(name);
+        return defaultState != null && Objects.equal(value, defaultState.value);
     }
 
     private final class MyHandler extends Handler {
@@ -553,26 +1190,74 @@ final class ArielSettingsState {
         }
     }
 
+    /**
+     * The fields of a setting taken together under the lock, so the writer
+     * does not see a value with the flags of another one.
+     */
+    private static final class SettingSnapshot {
+        final Setting setting;
+        final String name;
+        final String value;
+        final String packageName;
+        final long id;
+        final String blobHash;
+        final boolean valueIsBinary;
+        final boolean persistable;
+
+        // The settings provider must hold its lock when calling here.
+        SettingSnapshot(Setting setting) {
+            this.setting = setting;
+            this.name = setting.name;
+            this.value = setting.value;
+            this.packageName = setting.packageName;
+            this.id = setting.id;
+            this.blobHash = setting.blobHash;
+            this.valueIsBinary = setting.valueIsBinary;
+            this.persistable = setting.persistable;
+        }
+    }
+
+    /**
+     * A single setting. Its id is taken from a counter of the owning state
+     * every time the value changes, so the id also acts as the generation of
+     * the last change and ids are monotonic within a state.
+     */
     public final class Setting {
         private String name;
-        private String value;
+        private volatile String value;
         private String packageName;
-        private String id;
+        private long id;
+
+        // Hash of the blob file once the value is stored out of line. The
+        // value is still kept in memory so reads never do IO.
+        private volatile String blobHash;
+
+        // Whether the value has to be written in base64, computed when it is set.
+        private boolean valueIsBinary;
+
+        // Whether the name and package can be written to the XML file.
+        private boolean persistable;
 
         public Setting(String name, String value, String packageName) {
-            init(name, value, packageName, String.valueOf(mNextId++));
+            init(name, value, packageName, mNextId++);
         }
 
-        public Setting(String name, String value, String packageName, String id) {
-            mNextId = Math.max(mNextId, Long.valueOf(id) + 1);
+        public Setting(String name, String value, String packageName, long id) {
+            mNextId = Math.max(mNextId, id + 1);
             init(name, value, packageName, id);
         }
 
-        private void init(String name, String value, String packageName, String id) {
+        private void init(String name, String value, String packageName, long id) {
             this.name = name;
             this.value = value;
             this.packageName = packageName;
             this.id = id;
+            this.valueIsBinary = value != null && isBinary(value);
+            this.persistable = name != null && !isBinary(name) && isPackagePersistable(packageName);
+        }
+
+        private boolean isPackagePersistable(String packageName) {
+            return packageName != null && !isBinary(packageName);
         }
 
         public String getName() {
@@ -583,21 +1268,36 @@ final class ArielSettingsState {
             return value;
         }
 
+        private void onBlobWrittenLocked(String writtenValue, String blobHash) {
+            final String value = this.value;
+            if (value != writtenValue) {
+                // Changed since we wrote the blob.
+                return;
+            }
+            this.blobHash = blobHash;
+        }
+
         public String getPackageName() {
             return packageName;
         }
 
-        public String getId() {
+        public long getId() {
             return id;
         }
 
         public boolean update(String value, String packageName) {
-            if (Objects.equal(value, this.value)) {
+            if (Objects.equal(value, getValue())) {
                 return false;
             }
+            if (!Objects.equal(packageName, this.packageName)) {
+                this.persistable = name != null && !isBinary(name)
+                        && isPackagePersistable(packageName);
+            }
             this.value = value;
+            this.blobHash = null;
             this.packageName = packageName;
-            this.id = String.valueOf(mNextId++);
+            this.id = mNextId++;
+            this.valueIsBinary = value != null && isBinary(value);
             return true;
         }
     }
@@ -621,38 +1321,118 @@ final class ArielSettingsState {
         return false;
     }
 
-    private static String base64Encode(String s) {
-        return Base64.encodeToString(toBytes(s), Base64.NO_WRAP);
-    }
+    private static final char[] BASE64_ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
 
-    private static String base64Decode(String s) {
-        return fromBytes(Base64.decode(s, Base64.DEFAULT));
+    private static final int[] BASE64_DECODE_TABLE = new int[128];
+    static {
+        for (int i = 0; i < BASE64_DECODE_TABLE.length; i++) {
+            BASE64_DECODE_TABLE[i] = -1;
+        }
+        for (int i = 0; i < BASE64_ALPHABET.length; i++) {
+            BASE64_DECODE_TABLE[BASE64_ALPHABET[i]] = i;
+        }
     }
 
-    // Note the followings are basically just UTF-16 encode/decode.  But we want to preserve
-    // contents as-is, even if it contains broken surrogate pairs, we do it by ourselves,
-    // since I don't know how Charset would treat them.
+    // Note the followings are basically just UTF-16BE encode/decode + base64.  But we want to
+    // preserve contents as-is, even if it contains broken surrogate pairs, we do it by ourselves,
+    // since I don't know how Charset would treat them.  The bytes are produced and consumed on
+    // the fly so that the only allocation is the resulting char array.
 
-    private static byte[] toBytes(String s) {
-        final byte[] result = new byte[s.length() * 2];
+    @VisibleForTesting
+    static String base64Encode(String s) {
+        final int byteCount = s.length() * 2;
+        final char[] result = new char[((byteCount + 2) / 3) * 4];
         int resultIndex = 0;
-        for (int i = 0; i < s.length(); ++i) {
-            char ch = s.charAt(i);
-            result[resultIndex++] = (byte) (ch >> 8);
-            result[resultIndex++] = (byte) ch;
+        int byteIndex = 0;
+        while (byteIndex + 3 <= byteCount) {
+            final int bits = getUtf16Byte(s, byteIndex) << 16
+                    | getUtf16Byte(s, byteIndex + 1) << 8
+                    | getUtf16Byte(s, byteIndex + 2);
+            result[resultIndex++] = BASE64_ALPHABET[(bits >> 18) & 0x3f];
+            result[resultIndex++] = BASE64_ALPHABET[(bits >> 12) & 0x3f];
+            result[resultIndex++] = BASE64_ALPHABET[(bits >> 6) & 0x3f];
+            result[resultIndex++] = BASE64_ALPHABET[bits & 0x3f];
+            byteIndex += 3;
+        }
+        final int remaining = byteCount - byteIndex;
+        if (remaining > 0) {
+            int bits = getUtf16Byte(s, byteIndex) << 16;
+            if (remaining == 2) {
+                bits |= getUtf16Byte(s, byteIndex + 1) << 8;
+            }
+            result[resultIndex++] = BASE64_ALPHABET[(bits >> 18) & 0x3f];
+            result[resultIndex++] = BASE64_ALPHABET[(bits >> 12) & 0x3f];
+            result[resultIndex++] = (remaining == 2) ? BASE64_ALPHABET[(bits >> 6) & 0x3f] : '=';
+            result[resultIndex++] = '=';
         }
-        return result;
+        return new String(result);
     }
 
-    private static String fromBytes(byte[] bytes) {
-        final StringBuffer sb = new StringBuffer(bytes.length / 2);
-
-        final int last = bytes.length - 1;
-
-        for (int i = 0; i < last; i += 2) {
-            final char ch = (char) ((bytes[i] & 0xff) << 8 | (bytes[i + 1] & 0xff));
-            sb.append(ch);
+    /**
+     * Decodes like {@link android.util.Base64#decode(String, int)} with
+     * {@link android.util.Base64#DEFAULT}: characters outside the alphabet,
+     * such as line breaks, are skipped and padding is optional, but if present
+     * it must complete the last group.
+     */
+    @VisibleForTesting
+    static String base64Decode(String s) {
+        final int length = s.length();
+        final char[] result = new char[(length * 3 / 4) / 2 + 1];
+        int resultIndex = 0;
+        int bits = 0;
+        int bitCount = 0;
+        int highByte = -1;
+        // Number of characters read in the current group of four.
+        int groupLength = 0;
+        int i = 0;
+        for (; i < length; i++) {
+            final char c = s.charAt(i);
+            if (c == '=') {
+                break;
+            }
+            final int sextet = (c < BASE64_DECODE_TABLE.length) ? BASE64_DECODE_TABLE[c] : -1;
+            if (sextet < 0) {
+                continue;
+            }
+            groupLength = (groupLength + 1) & 3;
+            bits = (bits << 6) | sextet;
+            bitCount += 6;
+            if (bitCount >= 8) {
+                bitCount -= 8;
+                final int b = (bits >> bitCount) & 0xff;
+                if (highByte < 0) {
+                    highByte = b;
+                } else {
+                    result[resultIndex++] = (char) (highByte << 8 | b);
+                    highByte = -1;
+                }
+            }
+        }
+        // A single character does not make a byte.
+        if (groupLength == 1) {
+            throw new IllegalArgumentException("bad base-64");
+        }
+        if (i < length) {
+            int paddingLength = 0;
+            for (; i < length; i++) {
+                final char c = s.charAt(i);
+                if (c == '=') {
+                    paddingLength++;
+                } else if (c < BASE64_DECODE_TABLE.length && BASE64_DECODE_TABLE[c] >= 0) {
+                    throw new IllegalArgumentException("bad base-64");
+                }
+            }
+            if (groupLength == 0 || paddingLength != 4 - groupLength) {
+                throw new IllegalArgumentException("bad base-64");
+            }
         }
-        return sb.toString();
+        // A trailing odd byte is dropped.
+        return new String(result, 0, resultIndex);
+    }
+
+    private static int getUtf16Byte(String s, int byteIndex) {
+        final char ch = s.charAt(byteIndex >> 1);
+        return ((byteIndex & 1) == 0) ? (ch >> 8) & 0xff : ch & 0xff;
     }
 }
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.arielsettings;
+
+import android.os.Bundle;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histograms and error counts of the provider operations per user,
+ * operation and table.
+ * <p>
+ * Recording only allocates the first time a user is seen, after which it is
+ * a short critical section to find the user and lock free updates.
+ * </p>
+ */
+final class ArielSettingsStats {
+    static final int OP_GET = 0;
+    static final int OP_PUT = 1;
+    static final int OP_QUERY = 2;
+    static final int OP_INSERT = 3;
+    static final int OP_BULK_INSERT = 4;
+    static final int OP_UPDATE = 5;
+    static final int OP_DELETE = 6;
+    static final int OP_OTHER = 7;
+
+    private static final String[] OP_NAMES = {
+        "get",
+        "put",
+        "query",
+        "insert",
+        "bulkInsert",
+        "update",
+        "delete",
+        "other",
+    };
+
+    static final int TABLE_GLOBAL = 0;
+    static final int TABLE_SECURE = 1;
+    static final int TABLE_SYSTEM = 2;
+    static final int TABLE_NONE = 3;
+
+    private static final String[] TABLE_NAMES = {
+        "global",
+        "secure",
+        "system",
+        "none",
+    };
+
+    private static final int SLOT_COUNT = OP_NAMES.length * TABLE_NAMES.length;
+
+    // Bound on the number of users with stats, later users are not recorded.
+    private static final int MAX_TRACKED_USERS = 32;
+
+    private static final class UserStats {
+        final ArielSettingsHistogram[] latencies = new ArielSettingsHistogram[SLOT_COUNT];
+        final AtomicLongArray errors = new AtomicLongArray(SLOT_COUNT);
+
+        UserStats() {
+            for (int i = 0; i < SLOT_COUNT; i++) {
+                latencies[i] = new ArielSettingsHistogram();
+            }
+        }
+    }
+
+    private final Object mLock = new Object();
+
+    @GuardedBy("mLock")
+    private final SparseArray<UserStats> mUserStats = new SparseArray<>();
+
+    public void record(int userId, int op, int table, long durationNanos, boolean failed) {
+        final UserStats userStats = getOrCreateUserStats(userId);
+        if (userStats == null) {
+            return;
+        }
+        final int slot = op * TABLE_NAMES.length + table;
+        userStats.latencies[slot].record(durationNanos);
+        if (failed) {
+            userStats.errors.incrementAndGet(slot);
+        }
+    }
+
+    public void reset() {
+        synchronized (mLock) {
+            mUserStats.clear();
+        }
+    }
+
+    public void dump(PrintWriter pw) {
+        pw.println("OPERATION STATS");
+        synchronized (mLock) {
+            final int userCount = mUserStats.size();
+            for (int i = 0; i < userCount; i++) {
+                final int userId = mUserStats.keyAt(i);
+                UserStats userStats = mUserStats.valueAt(i);
+                for (int slot = 0; slot < SLOT_COUNT; slot++) {
+                    ArielSettingsHistogram latencies = userStats.latencies[slot];
+                    if (latencies.getCount() == 0) {
+                        continue;
+                    }
+                    latencies.dump(pw, "  user " + userId + " " + getSlotName(slot)
+                            + " errors=" + userStats.errors.get(slot));
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the stats under keys of the form "op.&lt;user&gt;.&lt;op&gt;.&lt;table&gt;".
+     */
+    public void writeToBundle(Bundle bundle) {
+        synchronized (mLock) {
+            final int userCount = mUserStats.size();
+            for (int i = 0; i < userCount; i++) {
+                final int userId = mUserStats.keyAt(i);
+                UserStats userStats = mUserStats.valueAt(i);
+                for (int slot = 0; slot < SLOT_COUNT; slot++) {
+                    ArielSettingsHistogram latencies = userStats.latencies[slot];
+                    if (latencies.getCount() == 0) {
+                        continue;
+                    }
+                    final String prefix = "op." + userId + "." + getSlotName(slot);
+                    latencies.writeToBundle(bundle, prefix);
+                    bundle.putLong(prefix + ".errors", userStats.errors.get(slot));
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The stats of the user or null if too many users are tracked.
+     */
+    private UserStats getOrCreateUserStats(int userId) {
+        synchronized (mLock) {
+            UserStats userStats = mUserStats.get(userId);
+            if (userStats == null) {
+                if (mUserStats.size() >= MAX_TRACKED_USERS) {
+                    return null;
+                }
+                userStats = new UserStats();
+                mUserStats.put(userId, userStats);
+            }
+            return userStats;
+        }
+    }
+
+    static String getTableName(int table) {
+        return TABLE_NAMES[table];
+    }
+
+    private static String getSlotName(int slot) {
+        return OP_NAMES[slot / TABLE_NAMES.length] + "." + TABLE_NAMES[slot % TABLE_NAMES.length];
+    }
+}
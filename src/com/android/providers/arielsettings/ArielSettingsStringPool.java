@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.arielsettings;
+
+import android.provider.ArielSettings;
+import com.android.internal.annotations.GuardedBy;
+
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.WeakHashMap;
+
+/**
+ * Provider wide pool for de-duplicating the strings held by the settings
+ * states of all users, i.e. setting names, package names and short values.
+ * <p>
+ * Names are canonicalized to the constants declared in {@link ArielSettings}
+ * where they match. Entries are weakly referenced, so a string is dropped from
+ * the pool once no settings state uses it anymore.
+ * </p>
+ */
+final class ArielSettingsStringPool {
+    // Longer values are rarely shared and are not worth pooling.
+    private static final int MAX_POOLED_VALUE_LENGTH = 64;
+
+    private static final Object sLock = new Object();
+
+    @GuardedBy("sLock")
+    private static final WeakHashMap<String, WeakReference<String>> sPool =
+            new WeakHashMap<>();
+
+    static {
+        addConstants(ArielSettings.System.class);
+        addConstants(ArielSettings.Secure.class);
+        addConstants(ArielSettings.Global.class);
+    }
+
+    private ArielSettingsStringPool() {
+        /* do nothing */
+    }
+
+    /**
+     * @return The pooled instance of a setting name or package name.
+     */
+    public static String intern(String s) {
+        if (s == null) {
+            return null;
+        }
+        synchronized (sLock) {
+            WeakReference<String> ref = sPool.get(s);
+            String pooled = (ref != null) ? ref.get() : null;
+            if (pooled != null) {
+                return pooled;
+            }
+            sPool.put(s, new WeakReference<>(s));
+            return s;
+        }
+    }
+
+    /**
+     * @return The pooled instance of a setting value, or the value itself if
+     * it is too long to be worth sharing.
+     */
+    public static String internValue(String value) {
+        if (value == null || value.length() > MAX_POOLED_VALUE_LENGTH) {
+            return value;
+        }
+        return intern(value);
+    }
+
+    private static void addConstants(Class<?> clazz) {
+        for (Field field : clazz.getFields()) {
+            final int modifiers = field.getModifiers();
+            if (!Modifier.isStatic(modifiers) || !Modifier.isFinal(modifiers)
+                    || field.getType() != String.class) {
+                continue;
+            }
+            try {
+                String constant = (String) field.get(null);
+                if (constant != null) {
+                    // The constants are strongly held by their class.
+                    sPool.put(constant, new WeakReference<>(constant));
+                }
+            } catch (IllegalAccessException e) {
+                /* ignore - public fields */
+            }
+        }
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.arielsettings;
+
+import android.provider.ArielSettings;
+import android.util.ArrayMap;
+import android.util.SparseBooleanArray;
+
+import java.util.Set;
+
+/**
+ * Storage for the settings of one settings state keyed by setting name.
+ * <p>
+ * The platform defined settings, i.e. {@link ArielSettings.System#PUBLIC_SETTINGS}
+ * and {@link ArielSettings.System#PRIVATE_SETTINGS}, get a fixed slot from a
+ * perfect hash table computed at class initialization and are kept in a dense
+ * array, so looking them up is an array index. All other settings are kept in
+ * an {@link ArrayMap} while the table is small, and in an open addressing
+ * {@link ArielSettingsHashMap} once it grows past {@link #LARGE_TABLE_THRESHOLD}
+ * entries as the array shifts of the former get expensive for thousands of keys.
+ * A table never moves back to the array map.
+ * </p>
+ * <p>
+ * Entries are addressed by a position in [0, {@link #capacity()}) for iteration.
+ * A position may be empty in which case {@link #valueAt(int)} returns null.
+ * Removing at a position never moves the entries at lower positions, so it is
+ * safe to remove while iterating from the last position to the first one.
+ * </p>
+ * <p>
+ * Names cannot be null, looking up a null name finds nothing.
+ * </p>
+ * <p>
+ * This class is not thread safe; it is guarded by the lock of the owning state.
+ * </p>
+ */
+final class ArielSettingsTable<V> {
+    private static final int MAX_PERFECT_HASH_SEEDS = 64;
+
+    static final int LARGE_TABLE_THRESHOLD = 256;
+
+    // The known setting names indexed by slot.
+    private static final String[] sKnownNames;
+
+    // Perfect hash table mapping a hashed name to its slot or -1.
+    private static final int[] sKnownSlots;
+    private static final int sKnownSeed;
+
+    static {
+        Set<String> publicSettings = ArielSettings.System.PUBLIC_SETTINGS;
+        Set<String> privateSettings = ArielSettings.System.PRIVATE_SETTINGS;
+        String[] names = new String[publicSettings.size() + privateSettings.size()];
+        // Names with the same hash code cannot be told apart by the perfect hash,
+        // so only the first one gets a slot and the others are kept in the map.
+        SparseBooleanArray hashCodes = new SparseBooleanArray();
+        int nameCount = 0;
+        for (String name : publicSettings) {
+            if (!hashCodes.get(name.hashCode())) {
+                hashCodes.put(name.hashCode(), true);
+                names[nameCount++] = name;
+            }
+        }
+        for (String name : privateSettings) {
+            if (!hashCodes.get(name.hashCode())) {
+                hashCodes.put(name.hashCode(), true);
+                names[nameCount++] = name;
+            }
+        }
+        sKnownNames = new String[nameCount];
+        System.arraycopy(names, 0, sKnownNames, 0, nameCount);
+
+        int tableSize = 8;
+        while (tableSize < nameCount * 2) {
+            tableSize <<= 1;
+        }
+        int[] slots = null;
+        int seed = 0;
+        while (slots == null) {
+            for (seed = 0; seed < MAX_PERFECT_HASH_SEEDS; seed++) {
+                slots = buildKnownSlots(tableSize, seed);
+                if (slots != null) {
+                    break;
+                }
+            }
+            tableSize <<= 1;
+        }
+        sKnownSlots = slots;
+        sKnownSeed = seed;
+    }
+
+    private V[] mKnown;
+    private int mKnownCount;
+
+    // Exactly one of these holds the other settings.
+    private ArrayMap<String, V> mSmallOthers = new ArrayMap<>();
+    private ArielSettingsHashMap<V> mLargeOthers;
+
+    public int size() {
+        return mKnownCount + othersSize();
+    }
+
+    /**
+     * @return The upper bound of the positions to iterate over.
+     */
+    public int capacity() {
+        final int othersCapacity = (mLargeOthers != null)
+                ? mLargeOthers.capacity() : mSmallOthers.size();
+        return sKnownNames.length + othersCapacity;
+    }
+
+    public String keyAt(int position) {
+        if (position < sKnownNames.length) {
+            return (mKnown != null && mKnown[position] != null) ? sKnownNames[position] : null;
+        }
+        final int othersPosition = position - sKnownNames.length;
+        if (mLargeOthers != null) {
+            return mLargeOthers.keyAt(othersPosition);
+        }
+        return mSmallOthers.keyAt(othersPosition);
+    }
+
+    public V valueAt(int position) {
+        if (position < sKnownNames.length) {
+            return (mKnown != null) ? mKnown[position] : null;
+        }
+        final int othersPosition = position - sKnownNames.length;
+        if (mLargeOthers != null) {
+            return mLargeOthers.valueAt(othersPosition);
+        }
+        return mSmallOthers.valueAt(othersPosition);
+    }
+
+    public V removeAt(int position) {
+        if (position < sKnownNames.length) {
+            return removeKnown(position);
+        }
+        final int othersPosition = position - sKnownNames.length;
+        if (mLargeOthers != null) {
+            return mLargeOthers.removeAt(othersPosition);
+        }
+        return mSmallOthers.removeAt(othersPosition);
+    }
+
+    public boolean containsKey(String name) {
+        final int slot = getKnownSlot(name);
+        if (slot >= 0) {
+            return mKnown != null && mKnown[slot] != null;
+        }
+        if (mLargeOthers != null) {
+            return mLargeOthers.indexOfKey(name) >= 0;
+        }
+        return mSmallOthers.indexOfKey(name) >= 0;
+    }
+
+    public V get(String name) {
+        final int slot = getKnownSlot(name);
+        if (slot >= 0) {
+            return (mKnown != null) ? mKnown[slot] : null;
+        }
+        if (mLargeOthers != null) {
+            return mLargeOthers.get(name);
+        }
+        return mSmallOthers.get(name);
+    }
+
+    @SuppressWarnings("unchecked")
+    public V put(String name, V value) {
+        if (name == null) {
+            throw new IllegalArgumentException("name cannot be null");
+        }
+        final int slot = getKnownSlot(name);
+        if (slot >= 0) {
+            if (mKnown == null) {
+                mKnown = (V[]) new Object[sKnownNames.length];
+            }
+            V oldValue = mKnown[slot];
+            if (oldValue == null) {
+                mKnownCount++;
+            }
+            mKnown[slot] = value;
+            return oldValue;
+        }
+        if (mLargeOthers == null && mSmallOthers.size() >= LARGE_TABLE_THRESHOLD) {
+            promoteToLargeOthers();
+        }
+        if (mLargeOthers != null) {
+            return mLargeOthers.put(name, value);
+        }
+        return mSmallOthers.put(name, value);
+    }
+
+    public V remove(String name) {
+        final int slot = getKnownSlot(name);
+        if (slot >= 0) {
+            return removeKnown(slot);
+        }
+        if (mLargeOthers != null) {
+            return mLargeOthers.remove(name);
+        }
+        return mSmallOthers.remove(name);
+    }
+
+    private int othersSize() {
+        return (mLargeOthers != null) ? mLargeOthers.size() : mSmallOthers.size();
+    }
+
+    private void promoteToLargeOthers() {
+        final int othersCount = mSmallOthers.size();
+        ArielSettingsHashMap<V> largeOthers = new ArielSettingsHashMap<>(othersCount * 2);
+        for (int i = 0; i < othersCount; i++) {
+            largeOthers.put(mSmallOthers.keyAt(i), mSmallOthers.valueAt(i));
+        }
+        mLargeOthers = largeOthers;
+        mSmallOthers = null;
+    }
+
+    private V removeKnown(int slot) {
+        if (mKnown == null) {
+            return null;
+        }
+        V oldValue = mKnown[slot];
+        if (oldValue != null) {
+            mKnown[slot] = null;
+            mKnownCount--;
+        }
+        return oldValue;
+    }
+
+    /**
+     * @return The fixed slot of a platform defined setting or -1.
+     */
+    static int getKnownSlot(String name) {
+        if (name == null) {
+            return -1;
+        }
+        final int slot = sKnownSlots[hash(name.hashCode(), sKnownSeed, sKnownSlots.length)];
+        if (slot < 0) {
+            return -1;
+        }
+        final String knownName = sKnownNames[slot];
+        return (knownName == name || knownName.equals(name)) ? slot : -1;
+    }
+
+    private static int[] buildKnownSlots(int tableSize, int seed) {
+        int[] slots = new int[tableSize];
+        for (int i = 0; i < tableSize; i++) {
+            slots[i] = -1;
+        }
+        for (int i = 0; i < sKnownNames.length; i++) {
+            final int index = hash(sKnownNames[i].hashCode(), seed, tableSize);
+            if (slots[index] >= 0) {
+                return null;
+            }
+            slots[index] = i;
+        }
+        return slots;
+    }
+
+    private static int hash(int hashCode, int seed, int tableSize) {
+        int h = (hashCode ^ seed) * 0x9E3779B1;
+        h ^= h >>> 16;
+        return h & (tableSize - 1);
+    }
+}
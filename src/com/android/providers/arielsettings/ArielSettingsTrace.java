@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.arielsettings;
+
+import android.os.Trace;
+
+/**
+ * Systrace sections of the settings provider, all prefixed with "ArielSettings:"
+ * and logged under {@link Trace#TRACE_TAG_SYSTEM_SERVER} as the provider runs
+ * in the system process.
+ * <p>
+ * Section names are only built when the tag is enabled, so this costs a tag
+ * check when not tracing. Every {@link #begin} must be matched by an
+ * {@link #end} on the same thread, and every {@link #asyncBegin} by an
+ * {@link #asyncEnd} with the same name and cookie.
+ * </p>
+ */
+final class ArielSettingsTrace {
+    private static final long TRACE_TAG = Trace.TRACE_TAG_SYSTEM_SERVER;
+
+    private static final String PREFIX = "ArielSettings:";
+
+    // Async slices, names must be constant for begin and end to match.
+    static final String ASYNC_PERSIST = PREFIX + "pendingPersist";
+    static final String ASYNC_BACKUP_NOTIFY = PREFIX + "pendingBackupNotify";
+
+    private ArielSettingsTrace() {
+        /* do nothing */
+    }
+
+    public static void begin(String section) {
+        if (Trace.isTagEnabled(TRACE_TAG)) {
+            Trace.traceBegin(TRACE_TAG, PREFIX + section);
+        }
+    }
+
+    public static void begin(String section, String detail) {
+        if (Trace.isTagEnabled(TRACE_TAG)) {
+            Trace.traceBegin(TRACE_TAG, PREFIX + section + " " + detail);
+        }
+    }
+
+    public static void begin(String section, int detail) {
+        if (Trace.isTagEnabled(TRACE_TAG)) {
+            Trace.traceBegin(TRACE_TAG, PREFIX + section + " " + detail);
+        }
+    }
+
+    public static void begin(String section, String detail, int detail2) {
+        if (Trace.isTagEnabled(TRACE_TAG)) {
+            Trace.traceBegin(TRACE_TAG, PREFIX + section + " " + detail + " " + detail2);
+        }
+    }
+
+    public static void end() {
+        Trace.traceEnd(TRACE_TAG);
+    }
+
+    public static void asyncBegin(String name, int cookie) {
+        Trace.asyncTraceBegin(TRACE_TAG, name, cookie);
+    }
+
+    public static void asyncEnd(String name, int cookie) {
+        Trace.asyncTraceEnd(TRACE_TAG, name, cookie);
+    }
+}
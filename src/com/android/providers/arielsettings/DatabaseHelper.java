@@ -389,6 +389,11 @@ class DatabaseHelper extends SQLiteOpenHelper {
 //        }
 //    }
 
+    /**
+     * NOTE: New default values must not be seeded here. They are served by the
+     * read-only defaults layer loaded from res/xml/ariel_settings_defaults.xml
+     * and are never persisted per user.
+     */
     private void loadSettings(SQLiteDatabase db) {
         loadSystemSettings(db);
         loadSecureSettings(db);
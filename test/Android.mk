@@ -5,7 +5,13 @@ include $(CLEAR_VARS)
 # Note we statically link SettingsState to do some unit tests.  It's not accessible otherwise
 # because this test is not an instrumentation test. (because the target runs in the system process.)
 LOCAL_SRC_FILES := $(call all-subdir-java-files) \
-    ../src/com/android/providers/arielsettings/ArielSettingsState.java
+    ../src/com/android/providers/arielsettings/ArielSettingsState.java \
+    ../src/com/android/providers/arielsettings/ArielSettingsStringPool.java \
+    ../src/com/android/providers/arielsettings/ArielSettingsTable.java \
+    ../src/com/android/providers/arielsettings/ArielSettingsHashMap.java \
+    ../src/com/android/providers/arielsettings/ArielSettingsLock.java \
+    ../src/com/android/providers/arielsettings/ArielSettingsHistogram.java \
+    ../src/com/android/providers/arielsettings/ArielSettingsTrace.java
 
 LOCAL_PACKAGE_NAME := ArielSettingsProviderTest
 
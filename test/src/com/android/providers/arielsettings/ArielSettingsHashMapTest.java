@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.arielsettings;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Tests for {@link ArielSettingsHashMap}.
+ */
+public class ArielSettingsHashMapTest extends AndroidTestCase {
+    private static final String KEY_PREFIX = "ariel_hash_map_test_";
+
+    public void testPutGetRemove() {
+        ArielSettingsHashMap<String> map = new ArielSettingsHashMap<>(0);
+        assertNull(map.put(KEY_PREFIX + 0, "first"));
+        assertEquals("first", map.put(new String(KEY_PREFIX + 0), "second"));
+        assertEquals(1, map.size());
+        assertEquals("second", map.get(KEY_PREFIX + 0));
+
+        assertEquals("second", map.remove(KEY_PREFIX + 0));
+        assertNull(map.remove(KEY_PREFIX + 0));
+        assertNull(map.get(KEY_PREFIX + 0));
+        assertEquals(0, map.size());
+        assertEquals(-1, map.indexOfKey(null));
+    }
+
+    public void testTombstoneIsReused() {
+        ArielSettingsHashMap<String> map = new ArielSettingsHashMap<>(0);
+        for (int i = 0; i < 5; i++) {
+            map.put(KEY_PREFIX + i, Integer.toString(i));
+        }
+        final int position = map.indexOfKey(KEY_PREFIX + 2);
+        assertEquals("2", map.remove(KEY_PREFIX + 2));
+        assertNull(map.keyAt(position));
+        assertNull(map.valueAt(position));
+
+        // The probe sequence of the key reaches its tombstone first.
+        map.put(KEY_PREFIX + 2, "again");
+        assertEquals(position, map.indexOfKey(KEY_PREFIX + 2));
+        assertEquals(5, map.size());
+    }
+
+    public void testChurnDoesNotGrow() {
+        ArielSettingsHashMap<String> map = new ArielSettingsHashMap<>(0);
+        for (int i = 0; i < 3; i++) {
+            map.put(KEY_PREFIX + i, Integer.toString(i));
+        }
+        final int capacity = map.capacity();
+
+        // Each removal leaves a tombstone, rehashing drops them in place.
+        for (int i = 3; i < 1000; i++) {
+            map.put(KEY_PREFIX + i, Integer.toString(i));
+            map.remove(KEY_PREFIX + i);
+        }
+        assertEquals(capacity, map.capacity());
+        assertEquals(3, map.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(Integer.toString(i), map.get(KEY_PREFIX + i));
+        }
+    }
+
+    public void testRehashKeepsEntries() {
+        ArielSettingsHashMap<String> map = new ArielSettingsHashMap<>(0);
+        final int initialCapacity = map.capacity();
+        final int count = 1000;
+        for (int i = 0; i < count; i++) {
+            map.put(KEY_PREFIX + i, Integer.toString(i));
+        }
+        assertTrue(map.capacity() > initialCapacity);
+        // The load stays at most one half.
+        assertTrue(map.capacity() >= count * 2);
+        assertEquals(count, map.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals(Integer.toString(i), map.get(KEY_PREFIX + i));
+        }
+    }
+
+    public void testRemoveAtWhileIterating() {
+        ArielSettingsHashMap<String> map = new ArielSettingsHashMap<>(0);
+        final int count = 100;
+        for (int i = 0; i < count; i++) {
+            map.put(KEY_PREFIX + i, Integer.toString(i));
+        }
+
+        // Removal does not move entries, so any iteration order works.
+        int visited = 0;
+        for (int i = 0; i < map.capacity(); i++) {
+            final String key = map.keyAt(i);
+            if (key == null) {
+                continue;
+            }
+            visited++;
+            final String value = map.valueAt(i);
+            if (Integer.parseInt(value) % 2 == 0) {
+                assertEquals(value, map.removeAt(i));
+                assertNull(map.keyAt(i));
+                assertNull(map.removeAt(i));
+            }
+        }
+
+        assertEquals(count, visited);
+        assertEquals(count / 2, map.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals(i % 2 == 1, map.indexOfKey(KEY_PREFIX + i) >= 0);
+        }
+    }
+}
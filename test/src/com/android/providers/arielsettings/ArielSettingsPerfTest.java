@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.arielsettings;
+
+import android.provider.ArielSettings;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.ArrayMap;
+import android.util.Base64;
+import android.util.Log;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Benchmarks of the settings state data structures. They only log their
+ * results, run them with:
+ * <p>
+ * adb shell am instrument -w -e class com.android.providers.arielsettings.ArielSettingsPerfTest
+ * com.android.providers.arielsetting.test/android.test.InstrumentationTestRunner
+ * </p>
+ */
+@LargeTest
+public class ArielSettingsPerfTest extends AndroidTestCase {
+    private static final String LOG_TAG = "ArielSettingsPerfTest";
+
+    private static final String PACKAGE_NAME = "com.android.providers.arielsetting.test";
+
+    private static final int SETTINGS_PER_USER = 200;
+
+    private static final int LOOKUP_ITERATIONS = 200000;
+
+    private static final int CODEC_ITERATIONS = 100;
+
+    private final Object mLock = new Object();
+
+    public void testHeapFootprintPerUser() {
+        for (int userCount : new int[] {1, 10, 50}) {
+            final long usedBefore = getUsedHeapBytes();
+            ArielSettingsState[] states = new ArielSettingsState[userCount];
+            for (int userId = 0; userId < userCount; userId++) {
+                getUserFile(userId).delete();
+                states[userId] = new ArielSettingsState(mLock, getUserFile(userId), userId,
+                        ArielSettingsState.MAX_BYTES_PER_APP_PACKAGE_UNLIMITED, null);
+                synchronized (mLock) {
+                    for (int i = 0; i < SETTINGS_PER_USER; i++) {
+                        // Fresh copies as read from the file of each user.
+                        states[userId].insertSettingLocked(new String("setting_" + i),
+                                new String((i % 2 == 0) ? "0" : "1"), new String(PACKAGE_NAME));
+                    }
+                }
+            }
+            final long usedAfter = getUsedHeapBytes();
+            Log.i(LOG_TAG, "Heap footprint with " + userCount + " users: "
+                    + (usedAfter - usedBefore) / userCount + " bytes per user");
+
+            synchronized (mLock) {
+                for (ArielSettingsState state : states) {
+                    state.destroyLocked(null);
+                }
+            }
+            for (int userId = 0; userId < userCount; userId++) {
+                getUserFile(userId).delete();
+            }
+        }
+    }
+
+    public void testKnownSettingLookup() {
+        final String[] names = ArielSettings.System.PUBLIC_SETTINGS.toArray(new String[0]);
+        ArielSettingsTable<String> table = new ArielSettingsTable<>();
+        ArrayMap<String, String> map = new ArrayMap<>();
+        for (String name : names) {
+            table.put(name, name);
+            map.put(name, name);
+        }
+        // Lookups use copies, as names from callers are not the pooled instances.
+        final String[] lookups = new String[names.length];
+        for (int i = 0; i < names.length; i++) {
+            lookups[i] = new String(names[i]);
+        }
+
+        int found = 0;
+        long startNanos = System.nanoTime();
+        for (int i = 0; i < LOOKUP_ITERATIONS; i++) {
+            if (table.get(lookups[i % lookups.length]) != null) {
+                found++;
+            }
+        }
+        final long tableNanos = System.nanoTime() - startNanos;
+
+        startNanos = System.nanoTime();
+        for (int i = 0; i < LOOKUP_ITERATIONS; i++) {
+            if (map.get(lookups[i % lookups.length]) != null) {
+                found++;
+            }
+        }
+        final long mapNanos = System.nanoTime() - startNanos;
+
+        assertEquals(LOOKUP_ITERATIONS * 2, found);
+        Log.i(LOG_TAG, "Known setting lookup: table " + tableNanos / LOOKUP_ITERATIONS
+                + " ns, array map " + mapNanos / LOOKUP_ITERATIONS + " ns");
+    }
+
+    public void testLargeTableOperations() {
+        for (int keyCount : new int[] {100, 1000, 10000}) {
+            final String[] keys = new String[keyCount];
+            for (int i = 0; i < keyCount; i++) {
+                keys[i] = "ariel_perf_setting_" + i;
+            }
+
+            long startNanos = System.nanoTime();
+            ArielSettingsHashMap<String> hashMap = new ArielSettingsHashMap<>(0);
+            for (String key : keys) {
+                hashMap.put(key, key);
+            }
+            for (String key : keys) {
+                assertNotNull(hashMap.get(key));
+            }
+            for (String key : keys) {
+                hashMap.remove(key);
+            }
+            final long hashMapNanos = System.nanoTime() - startNanos;
+
+            startNanos = System.nanoTime();
+            ArrayMap<String, String> arrayMap = new ArrayMap<>();
+            for (String key : keys) {
+                arrayMap.put(key, key);
+            }
+            for (String key : keys) {
+                assertNotNull(arrayMap.get(key));
+            }
+            for (String key : keys) {
+                arrayMap.remove(key);
+            }
+            final long arrayMapNanos = System.nanoTime() - startNanos;
+
+            Log.i(LOG_TAG, "Put, get and remove of " + keyCount + " keys: hash map "
+                    + hashMapNanos / keyCount + " ns, array map "
+                    + arrayMapNanos / keyCount + " ns per key");
+        }
+    }
+
+    public void testBase64Codec() {
+        StringBuilder text = new StringBuilder();
+        StringBuilder binary = new StringBuilder();
+        for (int i = 0; i < 64 * 1024; i++) {
+            text.append((char) ('a' + i % 26));
+            binary.append((char) (i * 31));
+        }
+        benchmarkBase64("large text", text.toString());
+        benchmarkBase64("large binary", binary.toString());
+    }
+
+    private static void benchmarkBase64(String label, String value) {
+        long startNanos = System.nanoTime();
+        String encoded = null;
+        for (int i = 0; i < CODEC_ITERATIONS; i++) {
+            encoded = ArielSettingsState.base64Encode(value);
+        }
+        final long encodeNanos = System.nanoTime() - startNanos;
+
+        startNanos = System.nanoTime();
+        for (int i = 0; i < CODEC_ITERATIONS; i++) {
+            assertEquals(value.length(), ArielSettingsState.base64Decode(encoded).length());
+        }
+        final long decodeNanos = System.nanoTime() - startNanos;
+
+        // The platform codec on the UTF-16 bytes, as done before.
+        startNanos = System.nanoTime();
+        for (int i = 0; i < CODEC_ITERATIONS; i++) {
+            encoded = Base64.encodeToString(value.getBytes(StandardCharsets.UTF_16BE),
+                    Base64.NO_WRAP);
+        }
+        final long platformEncodeNanos = System.nanoTime() - startNanos;
+
+        startNanos = System.nanoTime();
+        for (int i = 0; i < CODEC_ITERATIONS; i++) {
+            assertEquals(value.length() * 2, Base64.decode(encoded, Base64.DEFAULT).length);
+        }
+        final long platformDecodeNanos = System.nanoTime() - startNanos;
+
+        Log.i(LOG_TAG, "Base64 of " + label + ": encode " + encodeNanos / CODEC_ITERATIONS
+                + " ns, decode " + decodeNanos / CODEC_ITERATIONS + " ns, platform encode "
+                + platformEncodeNanos / CODEC_ITERATIONS + " ns, platform decode "
+                + platformDecodeNanos / CODEC_ITERATIONS + " ns");
+    }
+
+    private File getUserFile(int userId) {
+        return new File(getContext().getCacheDir(), "ariel_settings_perf_" + userId + ".xml");
+    }
+
+    private static long getUsedHeapBytes() {
+        final Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            runtime.gc();
+            runtime.runFinalization();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.arielsettings;
+
+import android.test.AndroidTestCase;
+import android.util.ArrayMap;
+import android.util.Base64;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for {@link ArielSettingsState}, it is statically linked as it is
+ * not accessible from outside the system process.
+ */
+public class ArielSettingsStateTest extends AndroidTestCase {
+    private static final String PACKAGE_NAME = "com.android.providers.arielsetting.test";
+
+    private final Object mLock = new Object();
+
+    private File mSettingsFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mSettingsFile = new File(getContext().getCacheDir(), "ariel_settings_state_test.xml");
+        deleteSettingsFile();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteSettingsFile();
+        super.tearDown();
+    }
+
+    public void testChangesAfterReloadAreNewerThanBackup() {
+        ArielSettingsState state = newState();
+        final long backupGeneration;
+        synchronized (mLock) {
+            state.insertSettingLocked("kept", "1", PACKAGE_NAME);
+            state.insertSettingLocked("deleted", "2", PACKAGE_NAME);
+            state.setBackupGenerationLocked(state.getGenerationLocked());
+            state.deleteSettingLocked("deleted");
+            // The backup covers the deletion, so no change above it remains.
+            backupGeneration = state.getGenerationLocked();
+            state.setBackupGenerationLocked(backupGeneration);
+            state.persistSyncLocked();
+        }
+
+        state = newState();
+        synchronized (mLock) {
+            assertEquals(backupGeneration, state.getBackupGenerationLocked());
+            assertTrue(state.getGenerationLocked() >= backupGeneration);
+
+            state.insertSettingLocked("added", "3", PACKAGE_NAME);
+
+            List<String> changed = new ArrayList<>();
+            List<String> deleted = new ArrayList<>();
+            state.getChangesSinceLocked(backupGeneration, changed, deleted);
+            assertTrue(changed.contains("added"));
+            assertFalse(changed.contains("kept"));
+            assertTrue(deleted.isEmpty());
+        }
+    }
+
+    public void testDeleteBeforeFirstCommitIsReported() {
+        ArielSettingsState state = newState();
+        synchronized (mLock) {
+            state.insertSettingLocked("kept", "1", PACKAGE_NAME);
+            state.insertSettingLocked("deleted", "2", PACKAGE_NAME);
+
+            // Take the full backup, then delete before committing it.
+            List<String> changed = new ArrayList<>();
+            List<String> deleted = new ArrayList<>();
+            state.getChangesSinceLocked(state.getBackupGenerationLocked(), changed, deleted);
+            final long fullGeneration = state.getGenerationLocked();
+            assertTrue(changed.contains("deleted"));
+
+            state.deleteSettingLocked("deleted");
+            state.setBackupGenerationLocked(fullGeneration);
+
+            changed.clear();
+            deleted.clear();
+            state.getChangesSinceLocked(state.getBackupGenerationLocked(), changed, deleted);
+            assertTrue(changed.isEmpty());
+            assertTrue(deleted.contains("deleted"));
+        }
+    }
+
+    public void testDeleteRevertsToDefault() {
+        ArielSettingsState state = newState(newDefaults());
+        synchronized (mLock) {
+            assertTrue(state.insertSettingLocked("defaulted", "changed", PACKAGE_NAME));
+            assertEquals("changed", state.getSettingLocked("defaulted").getValue());
+
+            assertTrue(state.deleteSettingLocked("defaulted"));
+            assertEquals("default", state.getSettingLocked("defaulted").getValue());
+        }
+    }
+
+    public void testDeleteOfDefaultOnlySettingFails() {
+        ArielSettingsState state = newState(newDefaults());
+        synchronized (mLock) {
+            assertFalse(state.deleteSettingLocked("defaulted"));
+            assertEquals("default", state.getSettingLocked("defaulted").getValue());
+        }
+    }
+
+    public void testDefaultSettingsHaveNoId() {
+        ArielSettingsState state = newState(newDefaults());
+        synchronized (mLock) {
+            assertEquals(ArielSettingsState.ID_NONE,
+                    state.getSettingLocked("defaulted").getId());
+
+            assertTrue(state.insertSettingLocked("defaulted", "changed", PACKAGE_NAME));
+            final long overrideId = state.getSettingLocked("defaulted").getId();
+            assertTrue(overrideId >= 0);
+            assertTrue(state.insertSettingLocked("other", "1", PACKAGE_NAME));
+            assertTrue(state.getSettingLocked("other").getId() > overrideId);
+
+            assertTrue(state.deleteSettingLocked("defaulted"));
+            assertEquals(ArielSettingsState.ID_NONE,
+                    state.getSettingLocked("defaulted").getId());
+        }
+    }
+
+    public void testBase64EncodeMatchesPlatform() {
+        for (String value : getBase64Values()) {
+            assertEquals(Base64.encodeToString(toUtf16Bytes(value), Base64.NO_WRAP),
+                    ArielSettingsState.base64Encode(value));
+        }
+    }
+
+    public void testBase64DecodeMatchesPlatform() {
+        for (String value : getBase64Values()) {
+            final byte[] bytes = toUtf16Bytes(value);
+            // Values written by older versions may be wrapped or unpadded.
+            final String[] encodings = {
+                    Base64.encodeToString(bytes, Base64.NO_WRAP),
+                    Base64.encodeToString(bytes, Base64.DEFAULT),
+                    Base64.encodeToString(bytes, Base64.NO_PADDING),
+                    Base64.encodeToString(bytes, Base64.CRLF),
+            };
+            for (String encoded : encodings) {
+                assertEquals(value, ArielSettingsState.base64Decode(encoded));
+                assertEquals(fromUtf16Bytes(Base64.decode(encoded, Base64.DEFAULT)),
+                        ArielSettingsState.base64Decode(encoded));
+            }
+        }
+    }
+
+    public void testBase64DecodeRejectsLikePlatform() {
+        final String[] encodings = {
+                "", "A", "AB", "ABC", "ABCD", "AB=", "AB==", "ABC=", "ABC==", "=", "AB==C",
+                "AB= =", "AB==\n", "A B\tC D", "AB*CD", "ABCDE", "ABCD=",
+        };
+        for (String encoded : encodings) {
+            String expected;
+            try {
+                expected = fromUtf16Bytes(Base64.decode(encoded, Base64.DEFAULT));
+            } catch (IllegalArgumentException e) {
+                expected = null;
+            }
+            String actual;
+            try {
+                actual = ArielSettingsState.base64Decode(encoded);
+            } catch (IllegalArgumentException e) {
+                actual = null;
+            }
+            assertEquals(encoded, expected, actual);
+        }
+    }
+
+    private ArielSettingsState newState() {
+        return newState(null);
+    }
+
+    private ArielSettingsState newState(ArielSettingsState defaults) {
+        return new ArielSettingsState(mLock, mSettingsFile, 1,
+                ArielSettingsState.MAX_BYTES_PER_APP_PACKAGE_UNLIMITED, defaults);
+    }
+
+    private ArielSettingsState newDefaults() {
+        ArrayMap<String, String> defaults = new ArrayMap<>();
+        defaults.put("defaulted", "default");
+        return new ArielSettingsState(mLock, 1, defaults);
+    }
+
+    private static String[] getBase64Values() {
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            large.append((char) (i * 37));
+        }
+        return new String[] {
+                "", "a", "ab", "abc", "\u0000", "\u0001\u00ff\uffff", "\ud800broken", "\udc00",
+                large.toString(),
+        };
+    }
+
+    private static byte[] toUtf16Bytes(String s) {
+        final byte[] bytes = new byte[s.length() * 2];
+        for (int i = 0; i < s.length(); i++) {
+            bytes[i * 2] = (byte) (s.charAt(i) >> 8);
+            bytes[i * 2 + 1] = (byte) s.charAt(i);
+        }
+        return bytes;
+    }
+
+    private static String fromUtf16Bytes(byte[] bytes) {
+        final char[] chars = new char[bytes.length / 2];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = (char) ((bytes[i * 2] & 0xff) << 8 | (bytes[i * 2 + 1] & 0xff));
+        }
+        return new String(chars);
+    }
+
+    private void deleteSettingsFile() {
+        new File(mSettingsFile.getPath() + ".bak").delete();
+        mSettingsFile.delete();
+    }
+}
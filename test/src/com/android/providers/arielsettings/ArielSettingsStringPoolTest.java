@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.arielsettings;
+
+import android.provider.ArielSettings;
+import android.test.AndroidTestCase;
+
+import java.io.File;
+
+/**
+ * Tests for {@link ArielSettingsStringPool}.
+ */
+public class ArielSettingsStringPoolTest extends AndroidTestCase {
+    private static final String PACKAGE_NAME = "com.android.providers.arielsetting.test";
+
+    private final Object mLock = new Object();
+
+    public void testInternCanonicalizesToConstant() {
+        final String constant = ArielSettings.System.SCREEN_OFF_TIMEOUT;
+        assertSame(constant, ArielSettingsStringPool.intern(new String(constant)));
+    }
+
+    public void testInternSharesEqualStrings() {
+        final String first = ArielSettingsStringPool.intern(new String("ariel_pool_test"));
+        assertSame(first, ArielSettingsStringPool.intern(new String("ariel_pool_test")));
+    }
+
+    public void testInternNull() {
+        assertNull(ArielSettingsStringPool.intern(null));
+        assertNull(ArielSettingsStringPool.internValue(null));
+    }
+
+    public void testLongValuesAreNotPooled() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i <= 64; i++) {
+            builder.append('a');
+        }
+        final String value = builder.toString();
+        final String copy = new String(value);
+        assertSame(value, ArielSettingsStringPool.internValue(value));
+        assertSame(copy, ArielSettingsStringPool.internValue(copy));
+    }
+
+    public void testStatesOfUsersShareStrings() {
+        final File firstFile = new File(getContext().getCacheDir(), "ariel_pool_test_0.xml");
+        final File secondFile = new File(getContext().getCacheDir(), "ariel_pool_test_1.xml");
+        firstFile.delete();
+        secondFile.delete();
+        ArielSettingsState first = new ArielSettingsState(mLock, firstFile, 0,
+                ArielSettingsState.MAX_BYTES_PER_APP_PACKAGE_UNLIMITED, null);
+        ArielSettingsState second = new ArielSettingsState(mLock, secondFile, 1,
+                ArielSettingsState.MAX_BYTES_PER_APP_PACKAGE_UNLIMITED, null);
+        try {
+            synchronized (mLock) {
+                first.insertSettingLocked(new String("shared_name"), new String("1"),
+                        new String(PACKAGE_NAME));
+                second.insertSettingLocked(new String("shared_name"), new String("1"),
+                        new String(PACKAGE_NAME));
+
+                ArielSettingsState.Setting firstSetting = first.getSettingLocked("shared_name");
+                ArielSettingsState.Setting secondSetting = second.getSettingLocked("shared_name");
+                assertSame(firstSetting.getName(), secondSetting.getName());
+                assertSame(firstSetting.getValue(), secondSetting.getValue());
+                assertSame(firstSetting.getPackageName(), secondSetting.getPackageName());
+            }
+        } finally {
+            synchronized (mLock) {
+                first.destroyLocked(null);
+                second.destroyLocked(null);
+            }
+            firstFile.delete();
+            secondFile.delete();
+        }
+    }
+}
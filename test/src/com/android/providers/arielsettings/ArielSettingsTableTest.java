@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.arielsettings;
+
+import android.provider.ArielSettings;
+import android.test.AndroidTestCase;
+
+/**
+ * Tests for {@link ArielSettingsTable}.
+ */
+public class ArielSettingsTableTest extends AndroidTestCase {
+    private static final String OTHER_NAME_PREFIX = "ariel_table_test_";
+
+    public void testKnownNamesHaveFixedSlots() {
+        int slottedCount = 0;
+        for (String name : ArielSettings.System.PUBLIC_SETTINGS) {
+            final int slot = ArielSettingsTable.getKnownSlot(name);
+            if (slot >= 0) {
+                slottedCount++;
+                // A copy of the name finds the same slot.
+                assertEquals(slot, ArielSettingsTable.getKnownSlot(new String(name)));
+            }
+        }
+        assertTrue(slottedCount > 0);
+        assertEquals(-1, ArielSettingsTable.getKnownSlot(OTHER_NAME_PREFIX + 0));
+    }
+
+    public void testNullName() {
+        ArielSettingsTable<String> table = new ArielSettingsTable<>();
+        assertEquals(-1, ArielSettingsTable.getKnownSlot(null));
+        assertNull(table.get(null));
+        assertFalse(table.containsKey(null));
+        assertNull(table.remove(null));
+        try {
+            table.put(null, "value");
+            fail("Null names cannot be stored");
+        } catch (IllegalArgumentException e) {
+            /* expected */
+        }
+    }
+
+    public void testKnownNamesDoNotCountTowardsPromotion() {
+        ArielSettingsTable<String> table = new ArielSettingsTable<>();
+        final int knownCapacity = table.capacity();
+        final String knownName = getSlottedName();
+        table.put(knownName, "known");
+        for (int i = 0; i < ArielSettingsTable.LARGE_TABLE_THRESHOLD; i++) {
+            table.put(OTHER_NAME_PREFIX + i, Integer.toString(i));
+        }
+
+        // Still in the array map, whose capacity is its size.
+        assertEquals(ArielSettingsTable.LARGE_TABLE_THRESHOLD + 1, table.size());
+        assertEquals(ArielSettingsTable.LARGE_TABLE_THRESHOLD, table.capacity() - knownCapacity);
+        final int slot = ArielSettingsTable.getKnownSlot(knownName);
+        assertEquals(knownName, table.keyAt(slot));
+        assertEquals("known", table.valueAt(slot));
+    }
+
+    public void testPromotionKeepsEntries() {
+        ArielSettingsTable<String> table = new ArielSettingsTable<>();
+        final int knownCapacity = table.capacity();
+        final String knownName = getSlottedName();
+        table.put(knownName, "known");
+        final int otherCount = ArielSettingsTable.LARGE_TABLE_THRESHOLD + 1;
+        for (int i = 0; i < otherCount; i++) {
+            table.put(OTHER_NAME_PREFIX + i, Integer.toString(i));
+        }
+
+        // The hash map keeps free slots, so its capacity is above its size.
+        assertEquals(otherCount + 1, table.size());
+        assertTrue(table.capacity() - knownCapacity > otherCount);
+        assertEquals("known", table.get(knownName));
+        for (int i = 0; i < otherCount; i++) {
+            assertEquals(Integer.toString(i), table.get(OTHER_NAME_PREFIX + i));
+        }
+
+        assertEquals("0", table.remove(OTHER_NAME_PREFIX + 0));
+        assertFalse(table.containsKey(OTHER_NAME_PREFIX + 0));
+        assertEquals(otherCount, table.size());
+    }
+
+    public void testRemoveAtWhileIterating() {
+        for (int otherCount : new int[] {10, ArielSettingsTable.LARGE_TABLE_THRESHOLD * 2}) {
+            ArielSettingsTable<String> table = new ArielSettingsTable<>();
+            final String knownName = getSlottedName();
+            table.put(knownName, "known");
+            for (int i = 0; i < otherCount; i++) {
+                table.put(OTHER_NAME_PREFIX + i, Integer.toString(i));
+            }
+
+            // Drop the known name and the odd others from the last position down.
+            for (int i = table.capacity() - 1; i >= 0; i--) {
+                final String value = table.valueAt(i);
+                if (value == null) {
+                    continue;
+                }
+                if (value.equals("known") || Integer.parseInt(value) % 2 == 1) {
+                    assertEquals(value, table.removeAt(i));
+                }
+            }
+
+            assertEquals(otherCount / 2, table.size());
+            assertNull(table.get(knownName));
+            for (int i = 0; i < otherCount; i++) {
+                assertEquals(i % 2 == 0, table.containsKey(OTHER_NAME_PREFIX + i));
+            }
+        }
+    }
+
+    private static String getSlottedName() {
+        for (String name : ArielSettings.System.PUBLIC_SETTINGS) {
+            if (ArielSettingsTable.getKnownSlot(name) >= 0) {
+                return name;
+            }
+        }
+        throw new AssertionError("No platform defined setting has a slot");
+    }
+}